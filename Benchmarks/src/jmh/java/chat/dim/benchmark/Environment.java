@@ -0,0 +1,289 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import chat.dim.CipherKeyDelegate;
+import chat.dim.Facebook;
+import chat.dim.MessagePacker;
+import chat.dim.MessageProcessor;
+import chat.dim.Messenger;
+import chat.dim.Packer;
+import chat.dim.Plugins;
+import chat.dim.Processor;
+import chat.dim.core.FactoryManager;
+import chat.dim.crypto.AsymmetricKey;
+import chat.dim.crypto.DecryptKey;
+import chat.dim.crypto.EncryptKey;
+import chat.dim.crypto.PlainKey;
+import chat.dim.crypto.PrivateKey;
+import chat.dim.crypto.SignKey;
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.mkm.Entity;
+import chat.dim.mkm.User;
+import chat.dim.protocol.Document;
+import chat.dim.protocol.EntityType;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.Meta;
+import chat.dim.protocol.MetaType;
+import chat.dim.protocol.Visa;
+
+/**
+ *  Benchmark Environment
+ *  ~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  In-memory database, facebook & messenger for benchmarks
+ */
+public final class Environment {
+
+    public static final String pluginsName;
+
+    static {
+        Plugins.registerPlugins();
+        // CryptoPlugins or NativePlugins, depends on the classpath
+        if (register("chat.dim.CryptoPlugins", "registerCryptoPlugins")) {
+            pluginsName = "CryptoPlugins";
+        } else if (register("chat.dim.NativePlugins", "registerNativePlugins")) {
+            pluginsName = "NativePlugins";
+        } else {
+            throw new IllegalStateException("crypto plugins not found");
+        }
+        FactoryManager.getInstance().registerAllFactories();
+    }
+
+    private static boolean register(String className, String methodName) {
+        try {
+            Method method = Class.forName(className).getMethod(methodName);
+            method.invoke(null);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private final Map<ID, Meta> metas = new ConcurrentHashMap<>();
+    private final Map<ID, Document> documents = new ConcurrentHashMap<>();
+    private final Map<ID, SignKey> signKeys = new ConcurrentHashMap<>();
+    private final Map<ID, DecryptKey> decryptKeys = new ConcurrentHashMap<>();
+    private final Map<ID, List<ID>> members = new ConcurrentHashMap<>();
+
+    /**
+     *  Create user with identity key
+     *
+     * @param name      - ID.name
+     * @param algorithm - "RSA" or "ECC"
+     * @return user ID
+     */
+    public ID createUser(String name, String algorithm) {
+        PrivateKey idKey = PrivateKey.generate(algorithm);
+        Meta meta = Meta.generate(MetaType.MKM.value, idKey, name);
+        ID identifier = ID.generate(meta, EntityType.USER.value, null);
+        metas.put(identifier, meta);
+        signKeys.put(identifier, idKey);
+        if (idKey instanceof DecryptKey) {
+            // RSA key can be used for encryption too
+            decryptKeys.put(identifier, (DecryptKey) idKey);
+        } else {
+            // ECC key cannot be used for encryption,
+            // create visa with a communication key
+            PrivateKey msgKey = PrivateKey.generate(AsymmetricKey.RSA);
+            decryptKeys.put(identifier, (DecryptKey) msgKey);
+            Visa visa = (Visa) Document.create(Document.VISA, identifier);
+            visa.setKey((EncryptKey) msgKey.getPublicKey());
+            visa.sign(idKey);
+            documents.put(identifier, visa);
+        }
+        return identifier;
+    }
+
+    /**
+     *  Create group with members
+     *
+     * @param founder - founder ID
+     * @param name    - ID.name
+     * @param list    - group members
+     * @return group ID
+     */
+    public ID createGroup(ID founder, String name, List<ID> list) {
+        Meta meta = Meta.generate(MetaType.MKM.value, (PrivateKey) signKeys.get(founder), name);
+        ID identifier = ID.generate(meta, EntityType.GROUP.value, null);
+        metas.put(identifier, meta);
+        members.put(identifier, list);
+        return identifier;
+    }
+
+    public Messenger createMessenger(ID localUser) {
+        return new MemoryMessenger(new MemoryFacebook(localUser));
+    }
+
+    /**
+     *  Facebook with in-memory database
+     */
+    class MemoryFacebook extends Facebook {
+
+        private final List<User> localUsers = new ArrayList<>();
+
+        MemoryFacebook(ID localUser) {
+            super();
+            localUsers.add(getUser(localUser));
+        }
+
+        @Override
+        public List<User> getLocalUsers() {
+            return localUsers;
+        }
+
+        @Override
+        public boolean saveMeta(Meta meta, ID identifier) {
+            metas.put(identifier, meta);
+            return true;
+        }
+
+        @Override
+        public boolean saveDocument(Document doc) {
+            documents.put(doc.getIdentifier(), doc);
+            return true;
+        }
+
+        @Override
+        public Meta getMeta(ID identifier) {
+            return metas.get(identifier);
+        }
+
+        @Override
+        public Document getDocument(ID identifier, String type) {
+            return documents.get(identifier);
+        }
+
+        @Override
+        public List<ID> getContacts(ID user) {
+            return null;
+        }
+
+        @Override
+        public List<DecryptKey> getPrivateKeysForDecryption(ID user) {
+            List<DecryptKey> keys = new ArrayList<>();
+            DecryptKey key = decryptKeys.get(user);
+            if (key != null) {
+                keys.add(key);
+            }
+            return keys;
+        }
+
+        @Override
+        public SignKey getPrivateKeyForSignature(ID user) {
+            return signKeys.get(user);
+        }
+
+        @Override
+        public SignKey getPrivateKeyForVisaSignature(ID user) {
+            return signKeys.get(user);
+        }
+
+        @Override
+        public ID getFounder(ID group) {
+            return null;
+        }
+
+        @Override
+        public ID getOwner(ID group) {
+            return null;
+        }
+
+        @Override
+        public List<ID> getMembers(ID group) {
+            return members.get(group);
+        }
+    }
+
+    /**
+     *  Messenger with in-memory cipher keys
+     */
+    static class MemoryMessenger extends Messenger implements CipherKeyDelegate {
+
+        private final Facebook facebook;
+        private final Packer packer;
+        private final Processor processor;
+
+        private final Map<String, SymmetricKey> cipherKeys = new ConcurrentHashMap<>();
+
+        MemoryMessenger(Facebook facebook) {
+            super();
+            this.facebook = facebook;
+            this.packer = new MessagePacker(facebook, this);
+            this.processor = new MessageProcessor(facebook, this);
+        }
+
+        @Override
+        protected Entity.Delegate getEntityDelegate() {
+            return facebook;
+        }
+
+        @Override
+        protected CipherKeyDelegate getCipherKeyDelegate() {
+            return this;
+        }
+
+        @Override
+        protected Packer getPacker() {
+            return packer;
+        }
+
+        @Override
+        protected Processor getProcessor() {
+            return processor;
+        }
+
+        @Override
+        public SymmetricKey getCipherKey(ID sender, ID receiver, boolean generate) {
+            if (receiver.isBroadcast()) {
+                return PlainKey.getInstance();
+            }
+            String direction = sender + "->" + receiver;
+            SymmetricKey key = cipherKeys.get(direction);
+            if (key == null && generate) {
+                key = SymmetricKey.generate(SymmetricKey.AES);
+                cipherKeys.put(direction, key);
+            }
+            return key;
+        }
+
+        @Override
+        public void cacheCipherKey(ID sender, ID receiver, SymmetricKey key) {
+            cipherKeys.put(sender + "->" + receiver, key);
+        }
+    }
+}
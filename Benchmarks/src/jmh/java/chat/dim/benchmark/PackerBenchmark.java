@@ -0,0 +1,159 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import chat.dim.Messenger;
+import chat.dim.protocol.Envelope;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+import chat.dim.protocol.TextContent;
+
+/**
+ *  Message Packing Benchmark
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Sender:   encryptMessage -> signMessage -> serializeMessage
+ *  Receiver: deserializeMessage -> verifyMessage -> decryptMessage
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackerBenchmark {
+
+    @Param({"RSA", "ECC"})
+    public String algorithm;
+
+    // 0 means personal message
+    @Param({"0", "8", "64"})
+    public int members;
+
+    private Messenger sender;
+    private Messenger receiver;
+
+    private InstantMessage iMsg;
+    private SecureMessage sMsg;
+    private ReliableMessage rMsg;
+    private byte[] data;
+
+    private ReliableMessage received;
+    private SecureMessage verified;
+
+    @Setup
+    public void setup() {
+        Environment env = new Environment();
+        ID alice = env.createUser("alice", algorithm);
+        ID bob = env.createUser("bob", algorithm);
+        ID to;
+        if (members > 0) {
+            List<ID> list = new ArrayList<>(members);
+            list.add(alice);
+            list.add(bob);
+            for (int index = list.size(); index < members; ++index) {
+                list.add(env.createUser("member" + index, algorithm));
+            }
+            to = env.createGroup(alice, "group", list);
+        } else {
+            to = bob;
+        }
+        sender = env.createMessenger(alice);
+        receiver = env.createMessenger(bob);
+
+        // prepare messages for each step
+        iMsg = InstantMessage.create(Envelope.create(alice, to, null), TextContent.create("Hello world!"));
+        sMsg = sender.encryptMessage(iMsg);
+        rMsg = sender.signMessage(sMsg);
+        data = sender.serializeMessage(rMsg);
+        received = receiver.deserializeMessage(data);
+        verified = receiver.verifyMessage(received);
+        if (receiver.decryptMessage(verified) == null) {
+            throw new IllegalStateException("failed to decrypt message with " + Environment.pluginsName);
+        }
+    }
+
+    @Benchmark
+    public SecureMessage encryptMessage() {
+        return sender.encryptMessage(iMsg);
+    }
+
+    @Benchmark
+    public ReliableMessage signMessage() {
+        return sender.signMessage(sMsg);
+    }
+
+    @Benchmark
+    public byte[] serializeMessage() {
+        return sender.serializeMessage(rMsg);
+    }
+
+    @Benchmark
+    public ReliableMessage deserializeMessage() {
+        return receiver.deserializeMessage(data);
+    }
+
+    @Benchmark
+    public SecureMessage verifyMessage() {
+        return receiver.verifyMessage(received);
+    }
+
+    @Benchmark
+    public InstantMessage decryptMessage() {
+        return receiver.decryptMessage(verified);
+    }
+
+    @Benchmark
+    public byte[] packMessage() {
+        SecureMessage secure = sender.encryptMessage(iMsg);
+        ReliableMessage reliable = sender.signMessage(secure);
+        return sender.serializeMessage(reliable);
+    }
+
+    @Benchmark
+    public InstantMessage unpackMessage() {
+        ReliableMessage reliable = receiver.deserializeMessage(data);
+        SecureMessage secure = receiver.verifyMessage(reliable);
+        return receiver.decryptMessage(secure);
+    }
+}
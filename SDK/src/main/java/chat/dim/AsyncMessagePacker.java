@@ -0,0 +1,103 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import chat.dim.core.AsyncRunner;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+
+/**
+ *  Asynchronous Message Packer
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Run the synchronous packer in a dedicated thread pool (for crypto jobs)
+ */
+public class AsyncMessagePacker extends AsyncRunner implements AsyncPacker {
+
+    // resolve the packer for each job, so it can be replaced at runtime
+    private final Supplier<Packer> supplier;
+
+    public AsyncMessagePacker(Packer packer, Executor executor) {
+        this(() -> packer, executor);
+    }
+
+    public AsyncMessagePacker(Supplier<Packer> supplier, Executor executor) {
+        super(executor);
+        this.supplier = supplier;
+    }
+
+    public Packer getPacker() {
+        return supplier.get();
+    }
+
+    @Override
+    public CompletableFuture<ID> getOvertGroup(Content content) {
+        // no need to switch thread for this simple job
+        return CompletableFuture.completedFuture(getPacker().getOvertGroup(content));
+    }
+
+    @Override
+    public CompletableFuture<SecureMessage> encryptMessage(InstantMessage iMsg) {
+        return submit(() -> getPacker().encryptMessage(iMsg));
+    }
+
+    @Override
+    public CompletableFuture<ReliableMessage> signMessage(SecureMessage sMsg) {
+        return submit(() -> getPacker().signMessage(sMsg));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> serializeMessage(ReliableMessage rMsg) {
+        return submit(() -> getPacker().serializeMessage(rMsg));
+    }
+
+    @Override
+    public CompletableFuture<ReliableMessage> deserializeMessage(byte[] data) {
+        return submit(() -> getPacker().deserializeMessage(data));
+    }
+
+    @Override
+    public CompletableFuture<SecureMessage> verifyMessage(ReliableMessage rMsg) {
+        return submit(() -> getPacker().verifyMessage(rMsg));
+    }
+
+    @Override
+    public CompletableFuture<InstantMessage> decryptMessage(SecureMessage sMsg) {
+        return submit(() -> getPacker().decryptMessage(sMsg));
+    }
+}
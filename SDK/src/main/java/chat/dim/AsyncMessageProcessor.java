@@ -0,0 +1,92 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import chat.dim.core.AsyncRunner;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+
+/**
+ *  Asynchronous Message Processor
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Run the synchronous processor in a dedicated thread pool (for storage jobs)
+ */
+public class AsyncMessageProcessor extends AsyncRunner implements AsyncProcessor {
+
+    // resolve the processor for each job, so it can be replaced at runtime
+    private final Supplier<Processor> supplier;
+
+    public AsyncMessageProcessor(Processor processor, Executor executor) {
+        this(() -> processor, executor);
+    }
+
+    public AsyncMessageProcessor(Supplier<Processor> supplier, Executor executor) {
+        super(executor);
+        this.supplier = supplier;
+    }
+
+    public Processor getProcessor() {
+        return supplier.get();
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> processPackage(byte[] data) {
+        return submit(() -> getProcessor().processPackage(data));
+    }
+
+    @Override
+    public CompletableFuture<List<ReliableMessage>> processReliableMessage(ReliableMessage rMsg) {
+        return submit(() -> getProcessor().processReliableMessage(rMsg));
+    }
+
+    @Override
+    public CompletableFuture<List<SecureMessage>> processSecureMessage(SecureMessage sMsg, ReliableMessage rMsg) {
+        return submit(() -> getProcessor().processSecureMessage(sMsg, rMsg));
+    }
+
+    @Override
+    public CompletableFuture<List<InstantMessage>> processInstantMessage(InstantMessage iMsg, ReliableMessage rMsg) {
+        return submit(() -> getProcessor().processInstantMessage(iMsg, rMsg));
+    }
+
+    @Override
+    public CompletableFuture<List<Content>> processContent(Content content, ReliableMessage rMsg) {
+        return submit(() -> getProcessor().processContent(content, rMsg));
+    }
+}
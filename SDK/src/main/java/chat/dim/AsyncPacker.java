@@ -0,0 +1,110 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.util.concurrent.CompletableFuture;
+
+import chat.dim.protocol.Content;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+
+/**
+ *  Asynchronous Message Packer
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ */
+public interface AsyncPacker {
+
+    /**
+     *  Get group ID which should be exposed to public network
+     *
+     * @param content - message content
+     * @return exposed group ID
+     */
+    CompletableFuture<ID> getOvertGroup(Content content);
+
+    //
+    //  InstantMessage -> SecureMessage -> ReliableMessage -> Data
+    //
+
+    /**
+     *  Encrypt message content
+     *
+     * @param iMsg - plain message
+     * @return encrypted message
+     */
+    CompletableFuture<SecureMessage> encryptMessage(InstantMessage iMsg);
+
+    /**
+     *  Sign content data
+     *
+     * @param sMsg - encrypted message
+     * @return network message
+     */
+    CompletableFuture<ReliableMessage> signMessage(SecureMessage sMsg);
+
+    /**
+     *  Serialize network message
+     *
+     * @param rMsg - network message
+     * @return data package
+     */
+    CompletableFuture<byte[]> serializeMessage(ReliableMessage rMsg);
+
+    //
+    //  Data -> ReliableMessage -> SecureMessage -> InstantMessage
+    //
+
+    /**
+     *  Deserialize network message
+     *
+     * @param data - data package
+     * @return network message
+     */
+    CompletableFuture<ReliableMessage> deserializeMessage(byte[] data);
+
+    /**
+     *  Verify encrypted content data
+     *
+     * @param rMsg - network message
+     * @return encrypted message
+     */
+    CompletableFuture<SecureMessage> verifyMessage(ReliableMessage rMsg);
+
+    /**
+     *  Decrypt message content
+     *
+     * @param sMsg - encrypted message
+     * @return plain message
+     */
+    CompletableFuture<InstantMessage> decryptMessage(SecureMessage sMsg);
+}
@@ -30,11 +30,22 @@
  */
 package chat.dim;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
-import chat.dim.mkm.AddressFactory;
+import chat.dim.crypto.EncryptKey;
+import chat.dim.crypto.VerifyKey;
+import chat.dim.digest.SHA256;
+import chat.dim.format.Hex;
+import chat.dim.format.UTF8;
 import chat.dim.mkm.BaseGroup;
 import chat.dim.mkm.BaseUser;
 import chat.dim.mkm.Bot;
@@ -46,12 +57,60 @@ import chat.dim.protocol.Document;
 import chat.dim.protocol.EntityType;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.Meta;
+import chat.dim.protocol.Visa;
+import chat.dim.utils.LRUCache;
+import chat.dim.utils.SegmentedCache;
+import chat.dim.utils.SingleFlight;
 
 public abstract class Facebook extends Barrack {
 
     // memory caches
-    private final Map<ID, User> userMap = new HashMap<>();
-    private final Map<ID, Group> groupMap = new HashMap<>();
+    private final SegmentedCache<ID, User> userCache;
+    private final SegmentedCache<ID, Group> groupCache;
+
+    // entities failed to create (meta/visa not found), will be retried after expired
+    private final LRUCache<ID, Boolean> missingCache = new LRUCache<>(4096, 10 * 1000);
+
+    private final List<Observer> observers = new CopyOnWriteArrayList<>();
+
+    // indexes for selecting local user
+    private LocalUsers localUsers = null;
+    // members set for group, rebuilt when the members list changed
+    private final LRUCache<ID, Members> groupMembers = new LRUCache<>(1024, 0);
+
+    // loading metas/documents
+    private final SingleFlight<ID, Meta> metaFlight = new SingleFlight<>();
+    private final SingleFlight<String, Document> documentFlight = new SingleFlight<>();
+
+    // documents verified: (ID, data, signature, meta.key) => document
+    private final LRUCache<String, Document> verifiedDocuments = new LRUCache<>(4096, 0);
+
+    public Facebook() {
+        super();
+        userCache = createUserCache();
+        groupCache = createGroupCache();
+    }
+
+    // override for customized capacity & life span
+    protected SegmentedCache<ID, User> createUserCache() {
+        return new SegmentedCache<>(65536);
+    }
+    protected SegmentedCache<ID, Group> createGroupCache() {
+        return new SegmentedCache<>(16384);
+    }
+
+    /**
+     *  Get user cache for checking statistics (hit rate, size, ...)
+     *
+     * @return user cache
+     */
+    public SegmentedCache<ID, User> getUserCache() {
+        return userCache;
+    }
+
+    public SegmentedCache<ID, Group> getGroupCache() {
+        return groupCache;
+    }
 
     /**
      * Call it when received 'UIApplicationDidReceiveMemoryWarningNotification',
@@ -60,24 +119,96 @@ public abstract class Facebook extends Barrack {
      * @return number of survivors
      */
     public int reduceMemory() {
-        int finger = 0;
-        finger = AddressFactory.thanos(userMap, finger);
-        finger = AddressFactory.thanos(groupMap, finger);
-        return finger >> 1;
+        trimMemory();
+        return userCache.size() + groupCache.size();
+    }
+
+    /**
+     *  Remove 50% of cached objects, the least recently used first
+     *
+     * @return number of objects released
+     */
+    public int trimMemory() {
+        int count = userCache.trim(userCache.size() >> 1);
+        count += groupCache.trim(groupCache.size() >> 1);
+        return count;
     }
 
     private void cache(User user) {
         if (user.getDataSource() == null) {
             user.setDataSource(this);
         }
-        userMap.put(user.getIdentifier(), user);
+        userCache.put(user.getIdentifier(), user);
     }
 
     private void cache(Group group) {
         if (group.getDataSource() == null) {
             group.setDataSource(this);
         }
-        groupMap.put(group.getIdentifier(), group);
+        groupCache.put(group.getIdentifier(), group);
+    }
+
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     *  Call it after meta/document of the entity saved (or members of the group changed),
+     *  the observers will be notified
+     *
+     * @param identifier - entity ID
+     */
+    public void entityUpdated(ID identifier) {
+        missingCache.remove(identifier);
+        if (identifier.isGroup()) {
+            groupMembers.remove(identifier);
+        }
+        for (Observer observer : observers) {
+            observer.onEntityUpdated(identifier);
+        }
+    }
+
+    /**
+     *  Load meta with single-flight, concurrent calls for the same ID
+     *  will share one loading (call it in 'getMeta()' of subclass)
+     *
+     * @param identifier - entity ID
+     * @param loader     - load meta from storage/network
+     * @return entity meta
+     */
+    protected Meta loadMeta(ID identifier, Supplier<Meta> loader) {
+        return metaFlight.execute(identifier, loader);
+    }
+
+    /**
+     *  Load document with single-flight, concurrent calls for the same ID & type
+     *  will share one loading (call it in 'getDocument()' of subclass)
+     *
+     * @param identifier - entity ID
+     * @param type       - document type
+     * @param loader     - load document from storage/network
+     * @return entity document
+     */
+    protected Document loadDocument(ID identifier, String type, Supplier<Document> loader) {
+        return documentFlight.execute(identifier + "#" + type, loader);
+    }
+
+    /**
+     *  Get number of meta/document loadings shared with concurrent calls
+     */
+    public long getCoalescedCount() {
+        return metaFlight.getCoalescedCount() + documentFlight.getCoalescedCount();
+    }
+
+    /**
+     *  Get number of meta/document loadings executed
+     */
+    public long getLoadCount() {
+        return metaFlight.getLoadCount() + documentFlight.getLoadCount();
     }
 
     /**
@@ -104,9 +235,62 @@ public abstract class Facebook extends Barrack {
      * @return true on accepted
      */
     public boolean checkDocument(Document doc) {
+        boolean verified = doc.isValid();
+        Meta meta = getDocumentMeta(doc);
+        if (meta == null || !doc.verify(meta.getKey())) {
+            return false;
+        }
+        String tag = verified ? null : getDocumentTag(doc, meta);
+        if (tag != null) {
+            verifiedDocuments.put(tag, doc);
+        }
+        return true;
+    }
+
+    /**
+     *  Document verifying, if the same document was verified before,
+     *  return the verified one without verifying again
+     *
+     * @param doc - entity document
+     * @return verified document, null on failed
+     */
+    public Document verifyDocument(Document doc) {
+        if (doc.isValid()) {
+            return doc;
+        }
+        Meta meta = getDocumentMeta(doc);
+        if (meta == null) {
+            return null;
+        }
+        String tag = getDocumentTag(doc, meta);
+        Document verified = tag == null ? null : verifiedDocuments.get(tag);
+        if (verified != null) {
+            return verified;
+        } else if (!doc.verify(meta.getKey())) {
+            return null;
+        }
+        if (tag != null) {
+            verifiedDocuments.put(tag, doc);
+        }
+        return doc;
+    }
+
+    private static String getDocumentTag(Document doc, Meta meta) {
+        String data = doc.getString("data");
+        String signature = doc.getString("signature");
+        String key = meta.getKey().getString("data");
+        if (data == null || signature == null || key == null) {
+            return null;
+        }
+        String text = doc.getIdentifier() + "\n" + data + "\n" + signature + "\n" + key;
+        return Hex.encode(SHA256.digest(UTF8.encode(text)));
+    }
+
+    // get meta for verifying document
+    private Meta getDocumentMeta(Document doc) {
         ID identifier = doc.getIdentifier();
         if (identifier == null) {
-            return false;
+            return null;
         }
         // NOTICE: if this is a bulletin document for group,
         //             verify it with the group owner's meta.key
@@ -125,18 +309,21 @@ public abstract class Facebook extends Barrack {
                 meta = getMeta(identifier);
             } else {
                 // FIXME: owner not found for this group
-                return false;
+                return null;
             }
         } else {
             meta = getMeta(identifier);
         }
-        return meta != null && doc.verify(meta.getKey());
+        return meta;
     }
 
     protected User createUser(ID identifier) {
-        // make sure visa key exists before calling this
-        assert identifier.isBroadcast() || getPublicKeyForEncryption(identifier) != null
-                : "visa key not found for user: " + identifier;
+        // make sure meta exists before calling this,
+        // visa key is only required for encrypting messages to this user
+        if (!identifier.isBroadcast() && getMeta(identifier) == null) {
+            // meta not found for user
+            return null;
+        }
         int type = identifier.getType();
         // check user type
         if (EntityType.STATION.equals(type)) {
@@ -150,8 +337,10 @@ public abstract class Facebook extends Barrack {
 
     protected Group createGroup(ID identifier) {
         // make sure meta exists before calling this
-        assert identifier.isBroadcast() || getMeta(identifier) != null
-                : "meta not found for group: " + identifier;
+        if (!identifier.isBroadcast() && getMeta(identifier) == null) {
+            // meta not found for group
+            return null;
+        }
         int type = identifier.getType();
         // check group type
         if (EntityType.ISP.equals(type)) {
@@ -181,16 +370,12 @@ public abstract class Facebook extends Barrack {
         } else if (receiver.isBroadcast()) {
             // broadcast message can decrypt by anyone, so just return current user
             return users.get(0);
-        } else if (receiver.isUser()) {
+        }
+        if (receiver.isUser()) {
             // 1. personal message
             // 2. split group message
-            for (User item : users) {
-                if (receiver.equals(item.getIdentifier())) {
-                    // DISCUSS: set this item to be current user?
-                    return item;
-                }
-            }
-            return null;
+            // DISCUSS: set this item to be current user?
+            return findLocalUser(users, Collections.singletonList(receiver));
         }
         // group message (recipient not designated)
         assert receiver.isGroup() : "receiver error: " + receiver;
@@ -200,13 +385,155 @@ public abstract class Facebook extends Barrack {
         assert grp != null : "group not ready: " + receiver;
         List<ID> members = grp.getMembers();
         assert members != null/* && members.size() > 0*/ : "members not found: " + receiver;
-        for (User item : users) {
-            if (members.contains(item.getIdentifier())) {
-                // DISCUSS: set this item to be current user?
-                return item;
+        if (members == null) {
+            return null;
+        } else if (users.size() <= members.size()) {
+            // check local users with members set
+            Set<ID> memberSet = getMemberSet(receiver, members);
+            for (User item : users) {
+                if (memberSet.contains(item.getIdentifier())) {
+                    // DISCUSS: set this item to be current user?
+                    return item;
+                }
+            }
+            return null;
+        }
+        // check members with local users index,
+        // the first local user in list wins
+        return findLocalUser(users, members);
+    }
+
+    // find the first local user in candidates with index,
+    // rebuild the index when the list changed, or an element replaced
+    private User findLocalUser(List<User> users, List<ID> candidates) {
+        LocalUsers index = localUsers;
+        if (index == null || index.users != users || index.count != users.size()) {
+            index = new LocalUsers(users);
+            localUsers = index;
+        }
+        int pos = index.search(users, candidates);
+        if (pos == LocalUsers.STALE) {
+            index = new LocalUsers(users);
+            localUsers = index;
+            pos = index.search(users, candidates);
+        }
+        return pos < 0 ? null : users.get(pos);
+    }
+
+    // members set will be rebuilt when the size or hash code of members list changed
+    private Set<ID> getMemberSet(ID group, List<ID> members) {
+        int hash = members.hashCode();
+        Members cached = groupMembers.get(group);
+        if (cached == null || cached.count != members.size() || cached.hash != hash) {
+            cached = new Members(members, hash);
+            groupMembers.put(group, cached);
+        }
+        return cached.set;
+    }
+
+    //
+    //  Bulk lookups
+    //  (override for loading them from database with one query)
+    //
+
+    /**
+     *  Get users
+     *
+     * @param identifiers - user IDs
+     * @return users found, ordered as IDs
+     */
+    public Map<ID, User> getUsers(List<ID> identifiers) {
+        Map<ID, User> users = new LinkedHashMap<>();
+        User user;
+        for (ID item : identifiers) {
+            user = getUser(item);
+            if (user != null) {
+                users.put(item, user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     *  Get metas
+     *
+     * @param identifiers - entity IDs
+     * @return metas found, ordered as IDs
+     */
+    public Map<ID, Meta> getMetas(List<ID> identifiers) {
+        Map<ID, Meta> metas = new LinkedHashMap<>();
+        Meta meta;
+        for (ID item : identifiers) {
+            meta = getMeta(item);
+            if (meta != null) {
+                metas.put(item, meta);
+            }
+        }
+        return metas;
+    }
+
+    /**
+     *  Get documents
+     *
+     * @param identifiers - entity IDs
+     * @param type        - document type
+     * @return documents found, ordered as IDs
+     */
+    public Map<ID, Document> getDocuments(List<ID> identifiers, String type) {
+        Map<ID, Document> documents = new LinkedHashMap<>();
+        Document doc;
+        for (ID item : identifiers) {
+            doc = getDocument(item, type);
+            if (doc != null) {
+                documents.put(item, doc);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     *  Get public keys for encryption (visa.key first, then meta.key)
+     *
+     * @param identifiers - user IDs
+     * @return keys ordered as IDs, null for not found
+     */
+    public List<EncryptKey> getEncryptKeys(List<ID> identifiers) {
+        List<EncryptKey> keys = new ArrayList<>(identifiers.size());
+        List<ID> missed = new ArrayList<>();
+        // 1. get keys from visa documents
+        Map<ID, Document> visas = getDocuments(identifiers, Document.VISA);
+        Document doc;
+        EncryptKey key;
+        for (ID item : identifiers) {
+            doc = visas.get(item);
+            if (doc instanceof Visa && doc.isValid()) {
+                key = ((Visa) doc).getKey();
+            } else {
+                key = null;
+            }
+            if (key == null) {
+                missed.add(item);
             }
+            keys.add(key);
+        }
+        if (missed.isEmpty()) {
+            return keys;
         }
-        return null;
+        // 2. get keys from metas
+        Map<ID, Meta> metas = getMetas(missed);
+        Meta meta;
+        VerifyKey metaKey;
+        for (int index = 0; index < keys.size(); ++index) {
+            if (keys.get(index) != null) {
+                continue;
+            }
+            meta = metas.get(identifiers.get(index));
+            metaKey = meta == null ? null : meta.getKey();
+            if (metaKey instanceof EncryptKey) {
+                keys.set(index, (EncryptKey) metaKey);
+            }
+        }
+        return keys;
     }
 
     //-------- Entity Delegate
@@ -214,12 +541,18 @@ public abstract class Facebook extends Barrack {
     @Override
     public User getUser(ID identifier) {
         // 1. get from user cache
-        User user = userMap.get(identifier);
+        User user = userCache.get(identifier);
         if (user == null) {
+            if (missingCache.get(identifier) != null) {
+                // failed to create this user just now
+                return null;
+            }
             // 2. create user and cache it
             user = createUser(identifier);
             if (user != null) {
                 cache(user);
+            } else {
+                missingCache.put(identifier, true);
             }
         }
         return user;
@@ -228,14 +561,98 @@ public abstract class Facebook extends Barrack {
     @Override
     public Group getGroup(ID identifier) {
         // 1. get from group cache
-        Group group = groupMap.get(identifier);
+        Group group = groupCache.get(identifier);
         if (group == null) {
+            if (missingCache.get(identifier) != null) {
+                // failed to create this group just now
+                return null;
+            }
             // 2. create group and cache it
             group = createGroup(identifier);
             if (group != null) {
                 cache(group);
+            } else {
+                missingCache.put(identifier, true);
             }
         }
         return group;
     }
+
+    /**
+     *  Index for local users
+     */
+    private static class LocalUsers {
+
+        final List<User> users;
+        final int count;
+        final Map<ID, Integer> positions;
+
+        LocalUsers(List<User> users) {
+            this.users = users;
+            this.count = users.size();
+            this.positions = new HashMap<>(count * 2);
+            ID identifier;
+            for (int index = count - 1; index >= 0; --index) {
+                identifier = users.get(index).getIdentifier();
+                positions.put(identifier, index);
+            }
+        }
+
+        static final int NOT_FOUND = -1;
+        static final int STALE = -2;
+
+        /**
+         *  Search the first local user in candidates
+         *
+         * @param users      - local users
+         * @param candidates - user IDs
+         * @return NOT_FOUND, or STALE when the index is out of date
+         */
+        int search(List<User> users, List<ID> candidates) {
+            int first = NOT_FOUND;
+            Integer pos;
+            for (ID item : candidates) {
+                pos = positions.get(item);
+                if (pos == null) {
+                    continue;
+                } else if (pos >= users.size() || !users.get(pos).getIdentifier().equals(item)) {
+                    // element replaced
+                    return STALE;
+                } else if (first < 0 || pos < first) {
+                    first = pos;
+                }
+            }
+            return first;
+        }
+    }
+
+    /**
+     *  Members set for group
+     */
+    private static class Members {
+
+        final Set<ID> set;
+        final int count;
+        final int hash;
+
+        Members(List<ID> members, int hash) {
+            this.set = new HashSet<>(members);
+            this.count = members.size();
+            this.hash = hash;
+        }
+    }
+
+    /**
+     *  Entity Observer
+     *  ~~~~~~~~~~~~~~~
+     */
+    public interface Observer {
+
+        /**
+         *  Called after meta/document of the entity updated
+         *
+         * @param identifier - entity ID
+         */
+        void onEntityUpdated(ID identifier);
+    }
 }
@@ -30,29 +30,179 @@
  */
 package chat.dim;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
 
+import chat.dim.core.BinaryMessageCodec;
+import chat.dim.core.MessageCodec;
+import chat.dim.core.MessageShortener;
 import chat.dim.core.TwinsHelper;
+import chat.dim.crypto.EncryptKey;
 import chat.dim.crypto.SymmetricKey;
+import chat.dim.digest.SHA256;
+import chat.dim.format.Hex;
 import chat.dim.format.JSON;
 import chat.dim.format.UTF8;
 import chat.dim.mkm.Group;
 import chat.dim.mkm.User;
 import chat.dim.protocol.Command;
 import chat.dim.protocol.Content;
+import chat.dim.protocol.Document;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.InstantMessage;
 import chat.dim.protocol.Meta;
 import chat.dim.protocol.ReliableMessage;
 import chat.dim.protocol.SecureMessage;
 import chat.dim.protocol.Visa;
+import chat.dim.utils.LRUCache;
 
 public class MessagePacker extends TwinsHelper implements Packer {
 
+    // use short keys for serializing messages
+    private boolean compact = false;
+
+    // codec for serializing messages, null means JSON
+    private MessageCodec codec = null;
+    private final MessageCodec binaryCodec = new BinaryMessageCodec();
+
+    // digests of messages verified
+    private LRUCache<String, Boolean> verifiedCache = null;
+
+    // meta/visa attached in messages which have been accepted
+    private final LRUCache<String, Boolean> acceptedCache = new LRUCache<>(4096, 3600 * 1000);
+
+    // encrypt group key for members in parallel when members count reached
+    private int parallelThreshold = 32;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    // whether the overridden 'encryptKey()' of messenger can be called in parallel
+    private boolean concurrentKeyEncryptor = false;
+
+    // group key encrypted for members
+    private LRUCache<String, byte[]> encryptedKeyCache = null;
+
     public MessagePacker(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
+    /**
+     *  Set compact mode, turn it on after the remote peer
+     *  declared that it can accept messages with short keys
+     *
+     * @param compact - true to serialize messages with short keys
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    // override for negotiating with each receiver
+    protected boolean isCompact(ReliableMessage rMsg) {
+        return compact;
+    }
+
+    /**
+     *  Set codec for serializing messages
+     *
+     * @param codec - message codec, null means JSON
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    // override for selecting codec for each receiver
+    protected MessageCodec getCodec(ReliableMessage rMsg) {
+        return codec;
+    }
+
+    /**
+     *  Set cache for skipping duplicated messages (retransmitted, or received
+     *  from different stations), which signatures were verified before
+     *
+     * @param cache - verified digests, null to disable it
+     */
+    public void setVerifiedCache(LRUCache<String, Boolean> cache) {
+        verifiedCache = cache;
+    }
+
+    public LRUCache<String, Boolean> getVerifiedCache() {
+        return verifiedCache;
+    }
+
+    /**
+     *  Set threshold for encrypting group key in parallel
+     *
+     * @param threshold - members count, 0 means always serially
+     */
+    public void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        return pool;
+    }
+
+    /**
+     *  Declare that the overridden 'encryptKey()' of messenger is thread-safe,
+     *  so it can be called in parallel for group members too;
+     *  default is false, which means the overridden one is always called serially
+     *
+     * @param concurrent - true to allow calling it in the pool
+     */
+    public void setConcurrentKeyEncryptor(boolean concurrent) {
+        concurrentKeyEncryptor = concurrent;
+    }
+
+    public boolean isConcurrentKeyEncryptor() {
+        return concurrentKeyEncryptor;
+    }
+
+    /**
+     *  Set cache for reusing group key encrypted for each member,
+     *  the entries will be missed when the group key changed,
+     *  or the member's visa key changed;
+     *  it is not used when 'encryptKey()' of messenger is overridden
+     *
+     * @param cache - encrypted keys, null to disable it
+     */
+    public void setEncryptedKeyCache(LRUCache<String, byte[]> cache) {
+        encryptedKeyCache = cache;
+    }
+
+    public LRUCache<String, byte[]> getEncryptedKeyCache() {
+        return encryptedKeyCache;
+    }
+
+    // override for detecting codec of received data
+    protected MessageCodec getCodec(byte[] data) {
+        if (BinaryMessageCodec.isBinary(data)) {
+            return codec instanceof BinaryMessageCodec ? codec : binaryCodec;
+        }
+        // JSON
+        return null;
+    }
+
     @Override
     public ID getOvertGroup(Content content) {
         ID group = content.getGroup();
@@ -125,14 +275,15 @@ public class MessagePacker extends TwinsHelper implements Packer {
             assert grp != null : "group not ready: " + receiver;
             List<ID> members = grp.getMembers();
             assert members != null && members.size() > 0: "group members not found: " + receiver;
-            sMsg = iMsg.encrypt(password, members);
+            sMsg = encryptGroupMessage(iMsg, password, members);
         } else {
             // personal message (or split group message)
             sMsg = iMsg.encrypt(password);
         }
         if (sMsg == null) {
-            // public key for encryption not found
-            // TODO: suspend this message for waiting receiver's meta
+            // public key for encryption not found,
+            // suspend this message for waiting receiver's visa
+            messenger.suspendMessage(iMsg, receiver);
             return null;
         }
 
@@ -153,6 +304,166 @@ public class MessagePacker extends TwinsHelper implements Packer {
         return sMsg;
     }
 
+    private SecureMessage encryptGroupMessage(InstantMessage iMsg, SymmetricKey password, List<ID> members) {
+        Messenger messenger = getMessenger();
+        // 1. encrypt 'content' to 'data'
+        byte[] data = messenger.serializeContent(iMsg.getContent(), password, iMsg);
+        assert data != null : "failed to serialize content: " + iMsg.getContent();
+        data = messenger.encryptContent(data, password, iMsg);
+        assert data != null : "failed to encrypt content with key: " + password;
+        Object base64 = messenger.encodeData(data, iMsg);
+        assert base64 != null : "failed to encode content data: " + data.length;
+        Map<String, Object> info = iMsg.copyMap(false);
+        info.remove("content");
+        info.put("data", base64);
+        // 2. serialize symmetric key
+        byte[] key = messenger.serializeKey(password, iMsg);
+        if (key == null) {
+            // A) broadcast message has no key
+            // B) reused key
+            return SecureMessage.parse(info);
+        }
+        // 3. encrypt symmetric key for members
+        byte[][] results;
+        if (isKeyEncryptorCustomized(messenger)) {
+            // call 'messenger.encryptKey()' for each member,
+            // serially unless it was declared thread-safe
+            int workload = concurrentKeyEncryptor ? members.size() : 0;
+            results = encryptKeys(members.size(), workload,
+                    index -> messenger.encryptKey(key, members.get(index), iMsg));
+        } else {
+            // NOTICE: 'Messenger.encryptKey()' is not overridden, it just encrypts
+            //         key with 'getPublicKeyForEncryption(member)', so get visa keys
+            //         for all members at once, and encrypt with them directly
+            List<EncryptKey> publicKeys = getFacebook().getEncryptKeys(members);
+            results = encryptKeys(key, members, publicKeys);
+        }
+        Map<String, Object> keys = new HashMap<>();
+        Object encoded;
+        for (int index = 0; index < results.length; ++index) {
+            if (results[index] == null) {
+                // public key for member not found
+                continue;
+            }
+            encoded = messenger.encodeKey(results[index], iMsg);
+            assert encoded != null : "failed to encode key data: " + results[index].length;
+            keys.put(members.get(index).toString(), encoded);
+        }
+        if (keys.isEmpty()) {
+            // public key for encryption not found
+            return null;
+        }
+        info.put("keys", keys);
+        return SecureMessage.parse(info);
+    }
+
+    private byte[][] encryptKeys(byte[] key, List<ID> members, List<EncryptKey> publicKeys) {
+        LRUCache<String, byte[]> cache = encryptedKeyCache;
+        if (cache == null) {
+            return encryptKeys(key, publicKeys);
+        }
+        int count = publicKeys.size();
+        byte[][] results = new byte[count][];
+        String[] tags = new String[count];
+        // 1. get encrypted keys from cache
+        String digest = Hex.encode(SHA256.digest(key));
+        List<EncryptKey> missed = new ArrayList<>(publicKeys);
+        EncryptKey publicKey;
+        String data;
+        for (int index = 0; index < count; ++index) {
+            publicKey = publicKeys.get(index);
+            data = publicKey == null ? null : publicKey.getString("data");
+            if (data == null) {
+                continue;
+            }
+            tags[index] = digest + ":" + members.get(index) + ":" + data;
+            results[index] = cache.get(tags[index]);
+            if (results[index] != null) {
+                missed.set(index, null);
+            }
+        }
+        // 2. encrypt for the missed members
+        byte[][] encrypted = encryptKeys(key, missed);
+        for (int index = 0; index < count; ++index) {
+            if (encrypted[index] == null) {
+                continue;
+            }
+            results[index] = encrypted[index];
+            if (tags[index] != null) {
+                cache.put(tags[index], encrypted[index]);
+            }
+        }
+        return results;
+    }
+
+    private byte[][] encryptKeys(byte[] key, List<EncryptKey> publicKeys) {
+        return encryptKeys(publicKeys.size(), countKeys(publicKeys), index -> {
+            EncryptKey publicKey = publicKeys.get(index);
+            return publicKey == null ? null : publicKey.encrypt(key);
+        });
+    }
+
+    /**
+     *  Encrypt key for each member, in parallel when workload reached the threshold
+     *
+     * @param count     - members count
+     * @param workload  - number of keys to be encrypted
+     * @param encryptor - index => encrypted key
+     * @return encrypted keys
+     */
+    private byte[][] encryptKeys(int count, int workload, IntFunction<byte[]> encryptor) {
+        byte[][] results = new byte[count][];
+        if (parallelThreshold <= 0 || workload < parallelThreshold) {
+            // encrypt one by one
+            encryptKeys(encryptor, results, 0, count);
+            return results;
+        }
+        // split into batches for each worker
+        int batches = Math.min(count, pool.getParallelism() * 2);
+        int size = (count + batches - 1) / batches;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(batches);
+        for (int start = 0; start < count; start += size) {
+            final int from = start;
+            final int to = Math.min(start + size, count);
+            tasks.add(pool.submit(() -> encryptKeys(encryptor, results, from, to)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return results;
+    }
+
+    private static int countKeys(List<EncryptKey> publicKeys) {
+        int count = 0;
+        for (EncryptKey item : publicKeys) {
+            if (item != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static void encryptKeys(IntFunction<byte[]> encryptor, byte[][] results, int start, int end) {
+        for (int index = start; index < end; ++index) {
+            results[index] = encryptor.apply(index);
+        }
+    }
+
+    // messenger classes => whether 'encryptKey()' overridden
+    private static final Map<Class<?>, Boolean> customizedEncryptors = new ConcurrentHashMap<>();
+
+    private static boolean isKeyEncryptorCustomized(Messenger messenger) {
+        return customizedEncryptors.computeIfAbsent(messenger.getClass(), clazz -> {
+            try {
+                Method method = clazz.getMethod("encryptKey", byte[].class, ID.class, InstantMessage.class);
+                Class<?> declaring = method.getDeclaringClass();
+                return declaring != Transceiver.class && declaring != Messenger.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        });
+    }
+
     @Override
     public ReliableMessage signMessage(SecureMessage sMsg) {
         // check message delegate
@@ -166,7 +477,16 @@ public class MessagePacker extends TwinsHelper implements Packer {
 
     @Override
     public byte[] serializeMessage(ReliableMessage rMsg) {
-        return UTF8.encode(JSON.encode(rMsg));
+        MessageCodec coder = getCodec(rMsg);
+        if (coder != null) {
+            return coder.encode(rMsg.toMap());
+        }
+        Map<String, Object> dict = rMsg.toMap();
+        if (isCompact(rMsg)) {
+            // translate to short keys
+            dict = MessageShortener.compress(dict);
+        }
+        return UTF8.encode(JSON.encode(dict));
     }
 
     //
@@ -175,51 +495,102 @@ public class MessagePacker extends TwinsHelper implements Packer {
 
     @Override
     public ReliableMessage deserializeMessage(byte[] data) {
+        MessageCodec coder = getCodec(data);
+        if (coder != null) {
+            return ReliableMessage.parse(coder.decode(data));
+        }
         Object dict = JSON.decode(UTF8.decode(data));
-        // TODO: translate short keys
-        //       'S' -> 'sender'
-        //       'R' -> 'receiver'
-        //       'W' -> 'time'
-        //       'T' -> 'type'
-        //       'G' -> 'group'
-        //       ------------------
-        //       'D' -> 'data'
-        //       'V' -> 'signature'
-        //       'K' -> 'key', 'keys'
-        //       ------------------
-        //       'M' -> 'meta'
-        //       'P' -> 'visa'
+        if (dict instanceof Map) {
+            // translate short keys (if compact)
+            @SuppressWarnings("unchecked")
+            Map<String, Object> info = (Map<String, Object>) dict;
+            dict = MessageShortener.extract(info);
+        }
         return ReliableMessage.parse(dict);
     }
 
     @Override
     public SecureMessage verifyMessage(ReliableMessage rMsg) {
-        // TODO: make sure meta exists before verifying message
-        Facebook facebook = getFacebook();
+        Messenger messenger = getMessenger();
         ID sender = rMsg.getSender();
         // [Meta Protocol]
-        Meta meta = rMsg.getMeta();
-        if (meta != null) {
-            facebook.saveMeta(meta, sender);
+        if (rMsg.get("meta") != null) {
+            saveMeta(rMsg, sender);
         }
         // [Visa Protocol]
-        Visa visa = rMsg.getVisa();
-        if (visa != null) {
-            facebook.saveDocument(visa);
+        if (rMsg.get("visa") != null) {
+            saveVisa(rMsg, sender);
         }
         // check message delegate
         if (rMsg.getDelegate() == null) {
-            rMsg.setDelegate(getMessenger());
+            rMsg.setDelegate(messenger);
         }
-        //
-        //  TODO: check [Visa Protocol] before calling this
-        //        make sure the sender's meta(visa) exists
-        //        (do in by application)
-        //
 
         assert rMsg.getSignature() != null : "message signature cannot be empty";
+        LRUCache<String, Boolean> cache = verifiedCache;
+        String digest = cache == null ? null : getDigest(rMsg);
+        if (digest != null && cache.get(digest) != null) {
+            // verified before, just remove the signature
+            Map<String, Object> info = rMsg.copyMap(false);
+            info.remove("signature");
+            return SecureMessage.parse(info);
+        }
         // verify 'data' with 'signature'
-        return rMsg.verify();
+        SecureMessage sMsg = rMsg.verify();
+        if (sMsg == null) {
+            // NOTICE: the user was just looked up (and cached) while verifying,
+            //         so this is a memory check, not another storage read
+            if (!sender.isBroadcast() && getFacebook().getUser(sender) == null) {
+                // sender's meta not found,
+                // suspend this message for waiting sender's meta
+                messenger.suspendMessage(rMsg, sender);
+            }
+            return null;
+        }
+        if (digest != null) {
+            cache.put(digest, true);
+        }
+        return sMsg;
+    }
+
+    private void saveMeta(ReliableMessage rMsg, ID sender) {
+        // meta is immutable for the entity, so
+        // there is no need to save it again once accepted
+        String key = "meta:" + sender;
+        if (acceptedCache.get(key) != null) {
+            return;
+        }
+        Meta meta = rMsg.getMeta();
+        Facebook facebook = getFacebook();
+        if (meta != null && facebook.saveMeta(meta, sender)) {
+            acceptedCache.put(key, true);
+            facebook.entityUpdated(sender);
+        }
+    }
+
+    private void saveVisa(ReliableMessage rMsg, ID sender) {
+        // visa with the same signature was accepted before
+        Object info = rMsg.get("visa");
+        Object signature = info instanceof Map ? ((Map<?, ?>) info).get("signature") : null;
+        String key = "visa:" + sender + ":" + signature;
+        if (signature != null && acceptedCache.get(key) != null) {
+            return;
+        }
+        Visa visa = rMsg.getVisa();
+        Facebook facebook = getFacebook();
+        // reuse the visa verified before
+        Document doc = visa == null ? null : facebook.verifyDocument(visa);
+        if (doc != null && facebook.saveDocument(doc)) {
+            if (signature != null) {
+                acceptedCache.put(key, true);
+            }
+            facebook.entityUpdated(sender);
+        }
+    }
+
+    private static String getDigest(ReliableMessage rMsg) {
+        String text = rMsg.getString("sender") + "\n" + rMsg.getString("data") + "\n" + rMsg.getString("signature");
+        return Hex.encode(SHA256.digest(UTF8.encode(text)));
     }
 
     @Override
@@ -243,8 +614,8 @@ public class MessagePacker extends TwinsHelper implements Packer {
             throw new NullPointerException("receiver error: " + sMsg);
         }
         // check message delegate
-        if (sMsg.getDelegate() == null) {
-            sMsg.setDelegate(getMessenger());
+        if (trimmed.getDelegate() == null) {
+            trimmed.setDelegate(getMessenger());
         }
         //
         //  NOTICE: make sure the receiver is YOU!
@@ -252,9 +623,9 @@ public class MessagePacker extends TwinsHelper implements Packer {
         //          if the receiver is a group ID, split it first
         //
 
-        assert sMsg.getData() != null : "message data cannot be empty";
+        assert trimmed.getData() != null : "message data cannot be empty";
         // decrypt 'data' to 'content'
-        return sMsg.decrypt();
+        return trimmed.decrypt();
 
         // TODO: check top-secret message
         //       (do it by application)
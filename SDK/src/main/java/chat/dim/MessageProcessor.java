@@ -31,12 +31,17 @@
 package chat.dim;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import chat.dim.core.TwinsHelper;
+import chat.dim.cpu.ConcurrentProcessorFactory;
 import chat.dim.cpu.ContentProcessor;
 import chat.dim.cpu.ContentProcessorCreator;
-import chat.dim.cpu.ContentProcessorFactory;
 import chat.dim.mkm.User;
 import chat.dim.protocol.Content;
 import chat.dim.protocol.Envelope;
@@ -49,17 +54,33 @@ public class MessageProcessor extends TwinsHelper implements Processor {
 
     private final ContentProcessor.Factory factory;
 
+    // thread pool for batch processing
+    private Executor executor = null;
+
     public MessageProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
         factory = createFactory();
     }
 
+    /**
+     *  Set thread pool for verifying/decrypting messages in batch
+     *
+     * @param executor - thread pool, null means processing in current thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
     // override for creating customized CPUs
     protected ContentProcessor.Creator createCreator() {
         return new ContentProcessorCreator(getFacebook(), getMessenger());
     }
     protected ContentProcessor.Factory createFactory() {
-        return new ContentProcessorFactory(getFacebook(), getMessenger(), createCreator());
+        return new ConcurrentProcessorFactory(getFacebook(), getMessenger(), createCreator());
     }
 
     public ContentProcessor getProcessor(Content content) {
@@ -85,22 +106,85 @@ public class MessageProcessor extends TwinsHelper implements Processor {
         }
         // 2. process message
         List<ReliableMessage> responses = messenger.processReliableMessage(rMsg);
-        if (responses == null || responses.size() == 0) {
-            // nothing to respond
-            return null;
-        }
         // 3. serialize responses
-        List<byte[]> packages = new ArrayList<>();
-        byte[] pack;
-        for (ReliableMessage res: responses) {
-            pack = messenger.serializeMessage(res);
-            if (pack == null) {
-                // should not happen
+        return serializeMessages(responses);
+    }
+
+    /**
+     *  Process packages received in batch
+     *  <p>
+     *      1. deserialize all messages in parallel;
+     *      2. process messages with the same sender one by one (keep ordering),
+     *         messages from different senders are processed in parallel;
+     *      3. encrypt, sign and serialize responses.
+     *  </p>
+     *  NOTICE: messages from the same sender are verified in order too,
+     *          so a meta attached to the earlier one can be used by the later ones.
+     *
+     * @param packages - data packages
+     * @return responses for each package, grouped by input index
+     */
+    public List<List<byte[]>> processPackages(List<byte[]> packages) {
+        Executor pool = executor;
+        if (pool == null) {
+            // process in current thread
+            pool = Runnable::run;
+        }
+        int count = packages.size();
+        // 1. deserialize messages
+        List<CompletableFuture<ReliableMessage>> unpacking = new ArrayList<>(count);
+        for (byte[] data : packages) {
+            unpacking.add(CompletableFuture.supplyAsync(() -> getMessenger().deserializeMessage(data), pool));
+        }
+        // 2. process messages, keep ordering for each sender
+        Map<ID, CompletableFuture<List<byte[]>>> chains = new HashMap<>();
+        List<CompletableFuture<List<byte[]>>> tasks = new ArrayList<>(count);
+        CompletableFuture<List<byte[]>> task;
+        ReliableMessage rMsg;
+        byte[] data;
+        for (int index = 0; index < count; ++index) {
+            data = packages.get(index);
+            try {
+                rMsg = unpacking.get(index).join();
+            } catch (CompletionException e) {
+                tasks.add(CompletableFuture.completedFuture(onPackageFailed(data, e.getCause())));
                 continue;
             }
-            packages.add(pack);
+            if (rMsg == null) {
+                // no valid message received
+                tasks.add(CompletableFuture.completedFuture(null));
+                continue;
+            }
+            final byte[] pack = data;
+            final ReliableMessage msg = rMsg;
+            ID sender = rMsg.getSender();
+            task = chains.get(sender);
+            if (task == null) {
+                task = CompletableFuture.supplyAsync(() -> process(pack, msg), pool);
+            } else {
+                task = task.handleAsync((res, error) -> process(pack, msg), pool);
+            }
+            chains.put(sender, task);
+            tasks.add(task);
         }
-        return packages;
+        // 3. collect responses
+        List<List<byte[]>> responses = new ArrayList<>(count);
+        for (CompletableFuture<List<byte[]>> item : tasks) {
+            responses.add(item.join());
+        }
+        return responses;
+    }
+
+    /**
+     *  Called when failed to process a package in batch
+     *
+     * @param data  - data package
+     * @param error - exception or error thrown
+     * @return responses for this package
+     */
+    protected List<byte[]> onPackageFailed(byte[] data, Throwable error) {
+        // override for logging or responding
+        return null;
     }
 
     @Override
@@ -115,22 +199,8 @@ public class MessageProcessor extends TwinsHelper implements Processor {
         }
         // 2. process message
         List<SecureMessage> responses = messenger.processSecureMessage(sMsg, rMsg);
-        if (responses == null || responses.size() == 0) {
-            // nothing to respond
-            return null;
-        }
         // 3. sign responses
-        List<ReliableMessage> messages = new ArrayList<>();
-        ReliableMessage msg;
-        for (SecureMessage res : responses) {
-            msg = messenger.signMessage(res);
-            if (msg == null) {
-                // should not happen
-                continue;
-            }
-            messages.add(msg);
-        }
-        return messages;
+        return signMessages(responses);
         // TODO: override to deliver to the receiver when catch exception "receiver error ..."
     }
 
@@ -146,22 +216,8 @@ public class MessageProcessor extends TwinsHelper implements Processor {
         }
         // 2. process message
         List<InstantMessage> responses = messenger.processInstantMessage(iMsg, rMsg);
-        if (responses == null || responses.size() == 0) {
-            // nothing to respond
-            return null;
-        }
         // 3. encrypt responses
-        List<SecureMessage> messages = new ArrayList<>();
-        SecureMessage msg;
-        for (InstantMessage res : responses) {
-            msg = messenger.encryptMessage(res);
-            if (msg == null) {
-                // should not happen
-                continue;
-            }
-            messages.add(msg);
-        }
-        return messages;
+        return encryptMessages(responses);
     }
 
     @Override
@@ -210,4 +266,72 @@ public class MessageProcessor extends TwinsHelper implements Processor {
         return cpu.process(content, rMsg);
         // TODO: override to filter the responses
     }
+
+    private List<byte[]> process(byte[] data, ReliableMessage rMsg) {
+        try {
+            List<ReliableMessage> responses = getMessenger().processReliableMessage(rMsg);
+            return serializeMessages(responses);
+        } catch (Throwable e) {
+            // including errors (e.g. assertion failed),
+            // so the other packages in batch can still be processed
+            return onPackageFailed(data, e);
+        }
+    }
+
+    private List<byte[]> serializeMessages(List<ReliableMessage> responses) {
+        if (responses == null || responses.size() == 0) {
+            // nothing to respond
+            return null;
+        }
+        Messenger messenger = getMessenger();
+        List<byte[]> packages = new ArrayList<>();
+        byte[] pack;
+        for (ReliableMessage res: responses) {
+            pack = messenger.serializeMessage(res);
+            if (pack == null) {
+                // should not happen
+                continue;
+            }
+            packages.add(pack);
+        }
+        return packages;
+    }
+
+    private List<ReliableMessage> signMessages(List<SecureMessage> responses) {
+        if (responses == null || responses.size() == 0) {
+            // nothing to respond
+            return null;
+        }
+        Messenger messenger = getMessenger();
+        List<ReliableMessage> messages = new ArrayList<>();
+        ReliableMessage msg;
+        for (SecureMessage res : responses) {
+            msg = messenger.signMessage(res);
+            if (msg == null) {
+                // should not happen
+                continue;
+            }
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    private List<SecureMessage> encryptMessages(List<InstantMessage> responses) {
+        if (responses == null || responses.size() == 0) {
+            // nothing to respond
+            return null;
+        }
+        Messenger messenger = getMessenger();
+        List<SecureMessage> messages = new ArrayList<>();
+        SecureMessage msg;
+        for (InstantMessage res : responses) {
+            msg = messenger.encryptMessage(res);
+            if (msg == null) {
+                // should not happen
+                continue;
+            }
+            messages.add(msg);
+        }
+        return messages;
+    }
 }
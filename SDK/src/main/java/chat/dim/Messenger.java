@@ -30,12 +30,22 @@
  */
 package chat.dim;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
+import chat.dim.core.AsyncRunner;
+import chat.dim.core.SuspendedQueue;
+import chat.dim.cpu.ContentProcessor;
+import chat.dim.crypto.EncryptKey;
 import chat.dim.crypto.SymmetricKey;
+import chat.dim.mkm.Entity;
+import chat.dim.mkm.User;
 import chat.dim.protocol.Content;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.Message;
 import chat.dim.protocol.ReliableMessage;
 import chat.dim.protocol.SecureMessage;
 
@@ -47,6 +57,136 @@ public abstract class Messenger extends Transceiver implements CipherKeyDelegate
 
     protected abstract Processor getProcessor();
 
+    private volatile AsyncPacker asyncPacker = null;
+    private volatile AsyncProcessor asyncProcessor = null;
+
+    private final List<Monitor> monitors = new CopyOnWriteArrayList<>();
+
+    /**
+     *  Get asynchronous packer, which runs packing jobs in its own thread pool
+     *
+     * @return async packer
+     */
+    public AsyncPacker getAsyncPacker() {
+        AsyncPacker packer = asyncPacker;
+        if (packer == null) {
+            packer = createAsyncPacker();
+            asyncPacker = packer;
+        }
+        return packer;
+    }
+
+    /**
+     *  Get asynchronous processor, which runs processing jobs in its own thread pool
+     *
+     * @return async processor
+     */
+    public AsyncProcessor getAsyncProcessor() {
+        AsyncProcessor processor = asyncProcessor;
+        if (processor == null) {
+            processor = createAsyncProcessor();
+            asyncProcessor = processor;
+        }
+        return processor;
+    }
+
+    // override for running packer with thread pool
+    protected AsyncPacker createAsyncPacker() {
+        return new AsyncMessagePacker(this::getPacker, null);
+    }
+
+    // override for running processor with thread pool
+    protected AsyncProcessor createAsyncProcessor() {
+        return new AsyncMessageProcessor(this::getProcessor, null);
+    }
+
+    public void addMonitor(Monitor monitor) {
+        monitors.add(monitor);
+    }
+
+    public void removeMonitor(Monitor monitor) {
+        monitors.remove(monitor);
+    }
+
+    private <T> T measure(String stage, Object input, Supplier<T> job) {
+        if (monitors.isEmpty()) {
+            return job.get();
+        }
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = job.get();
+        } catch (RuntimeException | Error e) {
+            notify(stage, typeOf(input), System.nanoTime() - start, e);
+            throw e;
+        }
+        // the message type is unknown before deserialized
+        notify(stage, typeOf(input == null ? result : input), System.nanoTime() - start, null);
+        return result;
+    }
+
+    private void notify(String stage, int type, long nanos, Throwable error) {
+        for (Monitor monitor : monitors) {
+            monitor.onMeasured(stage, type, nanos, error);
+        }
+    }
+
+    private static int typeOf(Object msg) {
+        if (msg instanceof InstantMessage) {
+            return ((InstantMessage) msg).getContent().getType();
+        } else if (msg instanceof Message) {
+            return ((Message) msg).getEnvelope().getType();
+        } else if (msg instanceof Content) {
+            return ((Content) msg).getType();
+        }
+        return 0;
+    }
+
+    /**
+     *  Get queue for messages waiting for meta/visa,
+     *  override to enable message suspension
+     *  <p>
+     *  NOTICE: messages will NOT be resumed automatically,
+     *          you should add the queue as an observer of facebook,
+     *          and set a delegate to send/process the resumed messages:
+     *  </p>
+     *  <pre>
+     *      queue.setDelegate(delegate);
+     *      facebook.addObserver(queue);
+     *  </pre>
+     *
+     * @return null to drop the messages
+     */
+    protected SuspendedQueue getSuspendedQueue() {
+        return null;
+    }
+
+    /**
+     *  Suspend outgoing message for waiting receiver's visa
+     *
+     * @param iMsg     - plain message
+     * @param receiver - receiver ID
+     */
+    public void suspendMessage(InstantMessage iMsg, ID receiver) {
+        SuspendedQueue queue = getSuspendedQueue();
+        if (queue != null) {
+            queue.suspend(iMsg, receiver);
+        }
+    }
+
+    /**
+     *  Suspend incoming message for waiting sender's meta
+     *
+     * @param rMsg   - network message
+     * @param sender - sender ID
+     */
+    public void suspendMessage(ReliableMessage rMsg, ID sender) {
+        SuspendedQueue queue = getSuspendedQueue();
+        if (queue != null) {
+            queue.suspend(rMsg, sender);
+        }
+    }
+
     //
     //  Interfaces for Cipher Key
     //
@@ -65,37 +205,37 @@ public abstract class Messenger extends Transceiver implements CipherKeyDelegate
     //
     @Override
     public ID getOvertGroup(Content content) {
-        return getPacker().getOvertGroup(content);
+        return AsyncRunner.join(getAsyncPacker().getOvertGroup(content));
     }
 
     @Override
     public SecureMessage encryptMessage(InstantMessage iMsg) {
-        return getPacker().encryptMessage(iMsg);
+        return measure("encryptMessage", iMsg, () -> AsyncRunner.join(getAsyncPacker().encryptMessage(iMsg)));
     }
 
     @Override
     public ReliableMessage signMessage(SecureMessage sMsg) {
-        return getPacker().signMessage(sMsg);
+        return measure("signMessage", sMsg, () -> AsyncRunner.join(getAsyncPacker().signMessage(sMsg)));
     }
 
     @Override
     public byte[] serializeMessage(ReliableMessage rMsg) {
-        return getPacker().serializeMessage(rMsg);
+        return measure("serializeMessage", rMsg, () -> AsyncRunner.join(getAsyncPacker().serializeMessage(rMsg)));
     }
 
     @Override
     public ReliableMessage deserializeMessage(byte[] data) {
-        return getPacker().deserializeMessage(data);
+        return measure("deserializeMessage", null, () -> AsyncRunner.join(getAsyncPacker().deserializeMessage(data)));
     }
 
     @Override
     public SecureMessage verifyMessage(ReliableMessage rMsg) {
-        return getPacker().verifyMessage(rMsg);
+        return measure("verifyMessage", rMsg, () -> AsyncRunner.join(getAsyncPacker().verifyMessage(rMsg)));
     }
 
     @Override
     public InstantMessage decryptMessage(SecureMessage sMsg) {
-        return getPacker().decryptMessage(sMsg);
+        return measure("decryptMessage", sMsg, () -> AsyncRunner.join(getAsyncPacker().decryptMessage(sMsg)));
     }
 
     //
@@ -103,31 +243,101 @@ public abstract class Messenger extends Transceiver implements CipherKeyDelegate
     //
     @Override
     public List<byte[]> processPackage(byte[] data) {
-        return getProcessor().processPackage(data);
+        return measure("processPackage", null, () -> AsyncRunner.join(getAsyncProcessor().processPackage(data)));
+    }
+
+    /**
+     *  Process packages received in batch
+     *
+     * @param packages - data packages
+     * @return responses for each package, grouped by input index
+     */
+    public List<List<byte[]>> processPackages(List<byte[]> packages) {
+        Processor processor = getProcessor();
+        if (processor instanceof MessageProcessor) {
+            return ((MessageProcessor) processor).processPackages(packages);
+        }
+        // process one by one
+        List<List<byte[]>> responses = new ArrayList<>(packages.size());
+        for (byte[] data : packages) {
+            responses.add(processor.processPackage(data));
+        }
+        return responses;
     }
 
     @Override
     public List<ReliableMessage> processReliableMessage(ReliableMessage rMsg) {
-        return getProcessor().processReliableMessage(rMsg);
+        return measure("processReliableMessage", rMsg, () -> AsyncRunner.join(getAsyncProcessor().processReliableMessage(rMsg)));
     }
 
     @Override
     public List<SecureMessage> processSecureMessage(SecureMessage sMsg, ReliableMessage rMsg) {
-        return getProcessor().processSecureMessage(sMsg, rMsg);
+        return measure("processSecureMessage", sMsg, () -> AsyncRunner.join(getAsyncProcessor().processSecureMessage(sMsg, rMsg)));
     }
 
     @Override
     public List<InstantMessage> processInstantMessage(InstantMessage iMsg, ReliableMessage rMsg) {
-        return getProcessor().processInstantMessage(iMsg, rMsg);
+        return measure("processInstantMessage", iMsg, () -> AsyncRunner.join(getAsyncProcessor().processInstantMessage(iMsg, rMsg)));
+    }
+
+    /**
+     *  Get content processor for the content
+     *
+     * @param content - content to be processed
+     * @return null if processor not found
+     */
+    public ContentProcessor getContentProcessor(Content content) {
+        Processor processor = getProcessor();
+        if (processor instanceof MessageProcessor) {
+            MessageProcessor mp = (MessageProcessor) processor;
+            ContentProcessor cpu = mp.getProcessor(content);
+            if (cpu == null) {
+                // default content processor
+                cpu = mp.getContentProcessor(0);
+            }
+            return cpu;
+        }
+        return null;
     }
 
     @Override
     public List<Content> processContent(Content content, ReliableMessage rMsg) {
-        return getProcessor().processContent(content, rMsg);
+        return measure("processContent", content, () -> AsyncRunner.join(getAsyncProcessor().processContent(content, rMsg)));
     }
 
     //-------- SecureMessageDelegate
 
+    @Override
+    public byte[] encryptKey(byte[] key, ID receiver, InstantMessage iMsg) {
+        User contact = getEntityDelegate().getUser(receiver);
+        if (contact == null) {
+            // receiver's meta not found
+            return null;
+        }
+        // NOTICE: check the key here (as 'User.encrypt()' does),
+        //         so the message can be suspended when visa key not found
+        Entity.DataSource dataSource = contact.getDataSource();
+        if (!(dataSource instanceof User.DataSource)) {
+            return contact.encrypt(key);
+        }
+        EncryptKey publicKey = ((User.DataSource) dataSource).getPublicKeyForEncryption(receiver);
+        if (publicKey == null) {
+            // receiver's visa key not found
+            return null;
+        }
+        return publicKey.encrypt(key);
+    }
+
+    @Override
+    public boolean verifyDataSignature(byte[] data, byte[] signature, ID sender, ReliableMessage rMsg) {
+        User user = getEntityDelegate().getUser(sender);
+        if (user == null) {
+            // sender's meta not found
+            return false;
+        }
+        return user.verify(data, signature);
+    }
+
     @Override
     public SymmetricKey deserializeKey(byte[] key, ID sender, ID receiver, SecureMessage sMsg) {
         if (key == null) {
@@ -161,4 +371,22 @@ public abstract class Messenger extends Transceiver implements CipherKeyDelegate
         //         after deserialize content, this job should be do in subclass
         return content;
     }
+
+    /**
+     *  Messenger Monitor
+     *  ~~~~~~~~~~~~~~~~~
+     */
+    public interface Monitor {
+
+        /**
+         *  Called after each packing/processing step finished
+         *  (time elapsed includes the inner steps)
+         *
+         * @param stage - method name, e.g.: "verifyMessage"
+         * @param type  - content type from envelope (0 means unknown)
+         * @param nanos - time elapsed
+         * @param error - exception thrown, null on success
+         */
+        void onMeasured(String stage, int type, long nanos, Throwable error);
+    }
 }
@@ -0,0 +1,366 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.dim.core.Stage;
+import chat.dim.core.TwinsHelper;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+
+/**
+ *  Staged Message Processor
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Process received packages through stages, each stage has its own thread pool
+ *  and bounded queue:
+ *      deserialize -> verify -> decrypt -> dispatch -> encrypt -> sign -> serialize
+ *
+ *  Packages are deserialized in parallel, but passed to stage 'verify' in the order
+ *  they arrived; stages 'verify', 'decrypt' and 'dispatch' are ordered by sender,
+ *  so messages from the same sender are processed one by one in the order
+ *  they arrived, and a meta attached to the earlier one can be used by the later ones.
+ *
+ *  NOTICE: the stages call the messenger step by step, the message passed verifying
+ *          and decrypting goes to 'processInstantMessage()' directly, so overriding
+ *          'processReliableMessage()' & 'processSecureMessage()' of the messenger
+ *          (or its processor) will not take effect here;
+ *          they are called only for messages failed to verify/decrypt.
+ */
+public class StagedMessageProcessor extends TwinsHelper {
+
+    public static final String DESERIALIZE = "deserialize";
+    public static final String VERIFY      = "verify";
+    public static final String DECRYPT     = "decrypt";
+    public static final String DISPATCH    = "dispatch";
+    public static final String ENCRYPT     = "encrypt";
+    public static final String SIGN        = "sign";
+    public static final String SERIALIZE   = "serialize";
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    // deserialized jobs waiting for the earlier ones: sequence => job
+    private final Map<Long, Job> pending = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private long released = 0;  // next sequence to be passed to stage 'verify'
+
+    private WeakReference<Delegate> delegateRef = null;
+
+    public StagedMessageProcessor(Facebook facebook, Messenger messenger) {
+        super(facebook, messenger);
+        String[] names = {DESERIALIZE, VERIFY, DECRYPT, DISPATCH, ENCRYPT, SIGN, SERIALIZE};
+        for (String name : names) {
+            stages.put(name, createStage(name));
+        }
+    }
+
+    // override for customized thread count, queue capacity & overload policy
+    protected Stage createStage(String name) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean ordered = VERIFY.equals(name) || DECRYPT.equals(name) || DISPATCH.equals(name);
+        return new Stage(name, threads, 1024, Stage.Policy.ABORT, ordered);
+    }
+
+    public Delegate getDelegate() {
+        return delegateRef == null ? null : delegateRef.get();
+    }
+
+    public void setDelegate(Delegate delegate) {
+        delegateRef = new WeakReference<>(delegate);
+    }
+
+    public Stage getStage(String name) {
+        return stages.get(name);
+    }
+
+    /**
+     *  Get queue depths of all stages
+     *
+     * @return stage name => tasks waiting
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (Stage stage : stages.values()) {
+            depths.put(stage.getName(), stage.getQueueDepth());
+        }
+        return depths;
+    }
+
+    /**
+     *  Check whether any stage is overloaded,
+     *  the station should stop reading from the connections when it's true
+     *
+     * @return true on overloaded
+     */
+    public boolean isOverloaded() {
+        for (Stage stage : stages.values()) {
+            if (stage.isOverloaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        for (Stage stage : stages.values()) {
+            stage.shutdown();
+        }
+    }
+
+    /**
+     *  Push received package into the first stage
+     *
+     * @param data - data package
+     */
+    public void process(byte[] data) {
+        Job job = new Job(data, sequence.getAndIncrement());
+        stages.get(DESERIALIZE).execute(() -> {
+            try {
+                job.rMsg = getMessenger().deserializeMessage(data);
+            } catch (RuntimeException e) {
+                job.error = e;
+            } finally {
+                // the later jobs are waiting for this one
+                release(job);
+            }
+        }, () -> {
+            job.error = new Stage.OverloadedException(DESERIALIZE);
+            release(job);
+        });
+    }
+
+    // pass deserialized jobs to stage 'verify' in the order they arrived
+    private void release(Job job) {
+        List<Job> dropped = new ArrayList<>();
+        synchronized (pending) {
+            pending.put(job.sequence, job);
+            Job item;
+            while ((item = pending.remove(released)) != null) {
+                ++released;
+                if (item.rMsg == null) {
+                    dropped.add(item);
+                    continue;
+                }
+                final Job ready = item;
+                next(VERIFY, ready, () -> verify(ready));
+            }
+        }
+        for (Job item : dropped) {
+            if (item.error == null) {
+                // no valid message received
+                finish(item, null);
+            } else {
+                fail(item, DESERIALIZE, item.error);
+            }
+        }
+    }
+
+    private void verify(Job job) {
+        SecureMessage sMsg;
+        try {
+            sMsg = getMessenger().verifyMessage(job.rMsg);
+        } catch (RuntimeException e) {
+            // leave it to 'processReliableMessage()'
+            next(DISPATCH, job, () -> dispatch(job));
+            return;
+        }
+        if (sMsg == null) {
+            // waiting for sender's meta if not exists
+            finish(job, null);
+            return;
+        }
+        job.sMsg = sMsg;
+        next(DECRYPT, job, () -> decrypt(job));
+    }
+
+    private void decrypt(Job job) {
+        InstantMessage iMsg;
+        try {
+            iMsg = getMessenger().decryptMessage(job.sMsg);
+        } catch (RuntimeException e) {
+            // leave it to 'processReliableMessage()'
+            job.sMsg = null;
+            next(DISPATCH, job, () -> dispatch(job));
+            return;
+        }
+        if (iMsg == null) {
+            // cannot decrypt this message, not for you?
+            finish(job, null);
+            return;
+        }
+        job.iMsg = iMsg;
+        next(DISPATCH, job, () -> dispatch(job));
+    }
+
+    private void dispatch(Job job) {
+        Messenger messenger = getMessenger();
+        if (job.iMsg == null) {
+            // failed to verify/decrypt, process it again,
+            // so the messenger can still deliver it to other receiver
+            List<ReliableMessage> responses = messenger.processReliableMessage(job.rMsg);
+            next(SERIALIZE, job, () -> serialize(job, responses));
+            return;
+        }
+        List<InstantMessage> responses = messenger.processInstantMessage(job.iMsg, job.rMsg);
+        if (responses == null || responses.size() == 0) {
+            // nothing to respond
+            finish(job, null);
+            return;
+        }
+        next(ENCRYPT, job, () -> encrypt(job, responses));
+    }
+
+    private void encrypt(Job job, List<InstantMessage> responses) {
+        Messenger messenger = getMessenger();
+        List<SecureMessage> messages = new ArrayList<>();
+        SecureMessage msg;
+        for (InstantMessage res : responses) {
+            msg = messenger.encryptMessage(res);
+            if (msg != null) {
+                messages.add(msg);
+            }
+        }
+        next(SIGN, job, () -> sign(job, messages));
+    }
+
+    private void sign(Job job, List<SecureMessage> responses) {
+        Messenger messenger = getMessenger();
+        List<ReliableMessage> messages = new ArrayList<>();
+        ReliableMessage msg;
+        for (SecureMessage res : responses) {
+            msg = messenger.signMessage(res);
+            if (msg != null) {
+                messages.add(msg);
+            }
+        }
+        next(SERIALIZE, job, () -> serialize(job, messages));
+    }
+
+    private void serialize(Job job, List<ReliableMessage> responses) {
+        if (responses == null || responses.size() == 0) {
+            // nothing to respond
+            finish(job, null);
+            return;
+        }
+        Messenger messenger = getMessenger();
+        List<byte[]> packages = new ArrayList<>();
+        byte[] pack;
+        for (ReliableMessage res : responses) {
+            pack = messenger.serializeMessage(res);
+            if (pack != null) {
+                packages.add(pack);
+            }
+        }
+        finish(job, packages);
+    }
+
+    private void next(String name, Job job, Runnable task) {
+        Stage stage = stages.get(name);
+        Runnable runner = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                fail(job, name, e);
+            }
+        };
+        Runnable fallback = () -> fail(job, name, new Stage.OverloadedException(name));
+        if (job.rMsg == null) {
+            stage.execute(runner, fallback);
+        } else {
+            // keep ordering for each sender
+            stage.execute(job.rMsg.getSender(), runner, fallback);
+        }
+    }
+
+    private void finish(Job job, List<byte[]> responses) {
+        Delegate delegate = getDelegate();
+        if (delegate != null) {
+            delegate.onProcessed(job.data, responses);
+        }
+    }
+
+    private void fail(Job job, String stage, Throwable error) {
+        Delegate delegate = getDelegate();
+        if (delegate != null) {
+            delegate.onFailed(job.data, stage, error);
+        }
+    }
+
+    /**
+     *  Package in processing
+     */
+    private static class Job {
+
+        final byte[] data;
+        final long sequence;
+        ReliableMessage rMsg = null;
+        SecureMessage sMsg = null;
+        InstantMessage iMsg = null;
+        Throwable error = null;
+
+        Job(byte[] data, long sequence) {
+            this.data = data;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     *  Staged Processor Delegate
+     *  ~~~~~~~~~~~~~~~~~~~~~~~~~
+     */
+    public interface Delegate {
+
+        /**
+         *  Called when the package processed
+         *
+         * @param data      - received package
+         * @param responses - response packages, null means nothing to respond
+         */
+        void onProcessed(byte[] data, List<byte[]> responses);
+
+        /**
+         *  Called when the package rejected by stage, or error occurred
+         *
+         * @param data  - received package
+         * @param stage - stage name
+         * @param error - Stage.OverloadedException when rejected
+         */
+        void onFailed(byte[] data, String stage, Throwable error);
+    }
+}
@@ -0,0 +1,112 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ *  Asynchronous Task Runner
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Run tasks in a dedicated thread pool;
+ *  nested tasks (submitted from a thread running task of any runner) will be
+ *  run in place, to avoid the pools being blocked by themselves or each other
+ *  (e.g. packer -> processor -> packer).
+ */
+public class AsyncRunner {
+
+    private final Executor executor;
+
+    // flag for threads running tasks of any runner (shared by packer & processor)
+    private static final ThreadLocal<Boolean> running = new ThreadLocal<>();
+
+    /**
+     *  Create runner with thread pool
+     *
+     * @param executor - thread pool, null means running in current thread
+     */
+    public AsyncRunner(Executor executor) {
+        super();
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (executor == null || running.get() != null) {
+            // run in current thread
+            return call(task);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            running.set(Boolean.TRUE);
+            try {
+                return task.get();
+            } finally {
+                running.remove();
+            }
+        }, executor);
+    }
+
+    private static <T> CompletableFuture<T> call(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(task.get());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     *  Wait for the result, rethrow the original exception on failure
+     *
+     * @param future - async result
+     * @return result
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import chat.dim.format.Base64;
+import chat.dim.format.JSON;
+import chat.dim.format.UTF8;
+import chat.dim.protocol.ID;
+
+/**
+ *  Binary Message Codec
+ *  ~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Data format:
+ *
+ *      MAGIC + fields
+ *
+ *      field = tag (1 byte) + length (varint) + value
+ *
+ *  Encrypted data, signature and key(s) are stored as raw bytes (not base64),
+ *  envelope fields are stored as UTF-8 strings and varints,
+ *  meta, visa and other unknown fields are stored as JSON.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    /**
+     *  First byte of binary message
+     *  (a JSON message always starts with '{')
+     */
+    public static final byte MAGIC = (byte) 0xD1;
+
+    // envelope
+    private static final int SENDER     = 0x01;  // UTF-8
+    private static final int RECEIVER   = 0x02;  // UTF-8
+    private static final int TIME       = 0x03;  // varint
+    private static final int TIME_FLOAT = 0x04;  // double (8 bytes)
+    private static final int TYPE       = 0x05;  // varint
+    private static final int GROUP      = 0x06;  // UTF-8
+    // body
+    private static final int DATA       = 0x10;  // raw data
+    private static final int DATA_TEXT  = 0x11;  // UTF-8 (for broadcast message)
+    private static final int SIGNATURE  = 0x12;  // raw data
+    private static final int KEY        = 0x13;  // raw data
+    private static final int KEYS       = 0x14;  // count + (ID, raw data) pairs
+    // attachments
+    private static final int META       = 0x20;  // JSON
+    private static final int VISA       = 0x21;  // JSON
+    // other fields
+    private static final int EXTRA      = 0x7F;  // JSON
+
+    /**
+     *  Check whether the data package is a binary message
+     *
+     * @param data - data package
+     * @return true on binary message
+     */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 && data[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Map<String, Object> msg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        out.write(MAGIC);
+        Map<String, Object> extra = new HashMap<>();
+        for (Map.Entry<String, Object> entry : msg.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            if (!encodeField(out, entry.getKey(), entry.getValue(), msg)) {
+                // unknown field
+                extra.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (extra.size() > 0) {
+            writeField(out, EXTRA, UTF8.encode(JSON.encode(extra)));
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean encodeField(ByteArrayOutputStream out, String name, Object value, Map<String, Object> msg) {
+        switch (name) {
+            case "sender":
+                return writeString(out, SENDER, value);
+            case "receiver":
+                return writeString(out, RECEIVER, value);
+            case "group":
+                return writeString(out, GROUP, value);
+            case "time":
+                if (value instanceof Integer || value instanceof Long) {
+                    writeField(out, TIME, varint(((Number) value).longValue()));
+                    return true;
+                } else if (value instanceof Number) {
+                    long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                    byte[] buffer = new byte[8];
+                    for (int i = 7; i >= 0; --i) {
+                        buffer[i] = (byte) bits;
+                        bits >>>= 8;
+                    }
+                    writeField(out, TIME_FLOAT, buffer);
+                    return true;
+                }
+                return false;
+            case "type":
+                if (value instanceof Integer) {
+                    writeField(out, TYPE, varint((Integer) value));
+                    return true;
+                }
+                return false;
+            case "data":
+                if (isBroadcast(msg)) {
+                    // broadcast message is not encrypted
+                    return writeString(out, DATA_TEXT, value);
+                }
+                return writeBinary(out, DATA, value);
+            case "signature":
+                return writeBinary(out, SIGNATURE, value);
+            case "key":
+                return writeBinary(out, KEY, value);
+            case "keys":
+                return writeKeys(out, value);
+            case "meta":
+                return writeJSON(out, META, value);
+            case "visa":
+                return writeJSON(out, VISA, value);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isBroadcast(Map<String, Object> msg) {
+        Object receiver = msg.get("group");
+        if (receiver == null) {
+            receiver = msg.get("receiver");
+        }
+        ID identifier = ID.parse(receiver);
+        return identifier != null && identifier.isBroadcast();
+    }
+
+    private static boolean writeString(ByteArrayOutputStream out, int tag, Object value) {
+        if (value instanceof String) {
+            writeField(out, tag, UTF8.encode((String) value));
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean writeBinary(ByteArrayOutputStream out, int tag, Object value) {
+        byte[] data = base64(value);
+        if (data == null) {
+            return false;
+        }
+        writeField(out, tag, data);
+        return true;
+    }
+
+    private static boolean writeJSON(ByteArrayOutputStream out, int tag, Object value) {
+        if (value instanceof Map) {
+            writeField(out, tag, UTF8.encode(JSON.encode(value)));
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean writeKeys(ByteArrayOutputStream out, Object value) {
+        if (!(value instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> keys = (Map<?, ?>) value;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(keys.size() * 160);
+        writeVarint(buffer, keys.size());
+        byte[] name;
+        byte[] data;
+        for (Map.Entry<?, ?> entry : keys.entrySet()) {
+            data = base64(entry.getValue());
+            if (data == null || !(entry.getKey() instanceof String)) {
+                // not an encrypted key, keep the whole map in JSON
+                return false;
+            }
+            name = UTF8.encode((String) entry.getKey());
+            writeVarint(buffer, name.length);
+            buffer.write(name, 0, name.length);
+            writeVarint(buffer, data.length);
+            buffer.write(data, 0, data.length);
+        }
+        writeField(out, KEYS, buffer.toByteArray());
+        return true;
+    }
+
+    private static byte[] base64(Object value) {
+        if (value instanceof String) {
+            try {
+                return Base64.decode((String) value);
+            } catch (IllegalArgumentException e) {
+                // not base64 string
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        writeVarint(out, value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static byte[] varint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(10);
+        writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Map<String, Object> decode(byte[] data) {
+        if (!isBinary(data)) {
+            return null;
+        }
+        Reader reader = new Reader(data, 1, data.length);
+        Map<String, Object> info = new HashMap<>();
+        int tag;
+        int length;
+        Reader field;
+        try {
+            while (reader.remaining() > 0) {
+                tag = reader.readByte();
+                length = (int) reader.readVarint();
+                if (length < 0 || length > reader.remaining()) {
+                    // data error
+                    return null;
+                }
+                field = new Reader(data, reader.offset, reader.offset + length);
+                if (!decodeField(info, tag, field)) {
+                    return null;
+                }
+                reader.offset += length;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // data error
+            return null;
+        } catch (RuntimeException e) {
+            // JSON error in meta/visa/extra
+            return null;
+        }
+        return info;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean decodeField(Map<String, Object> info, int tag, Reader field) {
+        switch (tag) {
+            case SENDER:
+                info.put("sender", UTF8.decode(field.toBytes()));
+                break;
+            case RECEIVER:
+                info.put("receiver", UTF8.decode(field.toBytes()));
+                break;
+            case GROUP:
+                info.put("group", UTF8.decode(field.toBytes()));
+                break;
+            case TIME:
+                info.put("time", field.readVarint());
+                break;
+            case TIME_FLOAT:
+                if (field.remaining() != 8) {
+                    return false;
+                }
+                long bits = 0;
+                for (int i = 0; i < 8; ++i) {
+                    bits = (bits << 8) | field.readByte();
+                }
+                info.put("time", Double.longBitsToDouble(bits));
+                break;
+            case TYPE:
+                info.put("type", (int) field.readVarint());
+                break;
+            case DATA:
+                info.put("data", Base64.encode(field.toBytes()));
+                break;
+            case DATA_TEXT:
+                info.put("data", UTF8.decode(field.toBytes()));
+                break;
+            case SIGNATURE:
+                info.put("signature", Base64.encode(field.toBytes()));
+                break;
+            case KEY:
+                info.put("key", Base64.encode(field.toBytes()));
+                break;
+            case KEYS:
+                Map<String, Object> keys = new HashMap<>();
+                long count = field.readVarint();
+                int length;
+                String name;
+                for (long i = 0; i < count; ++i) {
+                    length = (int) field.readVarint();
+                    if (length < 0 || length > field.remaining()) {
+                        return false;
+                    }
+                    name = UTF8.decode(field.readBytes(length));
+                    length = (int) field.readVarint();
+                    if (length < 0 || length > field.remaining()) {
+                        return false;
+                    }
+                    keys.put(name, Base64.encode(field.readBytes(length)));
+                }
+                info.put("keys", keys);
+                break;
+            case META:
+                info.put("meta", JSON.decode(UTF8.decode(field.toBytes())));
+                break;
+            case VISA:
+                info.put("visa", JSON.decode(UTF8.decode(field.toBytes())));
+                break;
+            case EXTRA:
+                Object extra = JSON.decode(UTF8.decode(field.toBytes()));
+                if (extra instanceof Map) {
+                    info.putAll((Map<String, Object>) extra);
+                }
+                break;
+            default:
+                // unknown field, skip it
+                break;
+        }
+        return true;
+    }
+
+    private static class Reader {
+
+        final byte[] buffer;
+        final int end;
+        int offset;
+
+        Reader(byte[] buffer, int offset, int end) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        int remaining() {
+            return end - offset;
+        }
+
+        int readByte() {
+            if (offset >= end) {
+                throw new ArrayIndexOutOfBoundsException("binary message error");
+            }
+            return buffer[offset++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int ch;
+            do {
+                ch = readByte();
+                value |= (long) (ch & 0x7F) << shift;
+                shift += 7;
+            } while ((ch & 0x80) != 0 && shift < 64);
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            byte[] data = Arrays.copyOfRange(buffer, offset, offset + length);
+            offset += length;
+            return data;
+        }
+
+        byte[] toBytes() {
+            return readBytes(remaining());
+        }
+    }
+}
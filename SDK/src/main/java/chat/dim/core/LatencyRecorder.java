@@ -0,0 +1,229 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import chat.dim.Messenger;
+import chat.dim.utils.Histogram;
+
+/**
+ *  Latency Recorder
+ *  ~~~~~~~~~~~~~~~~
+ *
+ *  Collect time elapsed for each stage of messenger, and each content type
+ *
+ *  Usage:
+ *      LatencyRecorder recorder = new LatencyRecorder();
+ *      messenger.addMonitor(recorder);
+ *      ...
+ *      Snapshot snapshot = recorder.getSnapshot("verifyMessage");
+ */
+public class LatencyRecorder implements Messenger.Monitor {
+
+    public static final int ALL_TYPES = -1;
+
+    // stage => records for content types
+    private final Map<String, Records> stages = new ConcurrentHashMap<>();
+
+    @Override
+    public void onMeasured(String stage, int type, long nanos, Throwable error) {
+        Records records = stages.get(stage);
+        if (records == null) {
+            records = stages.computeIfAbsent(stage, Records::new);
+        }
+        records.all.record(nanos, error);
+        records.get(type).record(nanos, error);
+    }
+
+    /**
+     *  Get statistics for stage
+     *
+     * @param stage - method name of messenger
+     * @return null when not recorded
+     */
+    public Snapshot getSnapshot(String stage) {
+        return getSnapshot(stage, ALL_TYPES);
+    }
+
+    /**
+     *  Get statistics for stage with content type
+     *
+     * @param stage - method name of messenger
+     * @param type  - content type
+     * @return null when not recorded
+     */
+    public Snapshot getSnapshot(String stage, int type) {
+        Records records = stages.get(stage);
+        if (records == null) {
+            return null;
+        }
+        Record record = type == ALL_TYPES ? records.all : records.find(type);
+        return record == null ? null : record.snapshot();
+    }
+
+    /**
+     *  Get statistics for all stages and content types
+     *
+     * @return snapshots sorted by stage & type
+     */
+    public List<Snapshot> getSnapshots() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Records records : stages.values()) {
+            snapshots.add(records.all.snapshot());
+            for (Record record : records.list()) {
+                snapshots.add(record.snapshot());
+            }
+        }
+        snapshots.sort((a, b) -> {
+            int res = a.stage.compareTo(b.stage);
+            return res != 0 ? res : Integer.compare(a.type, b.type);
+        });
+        return snapshots;
+    }
+
+    public void reset() {
+        stages.clear();
+    }
+
+    /**
+     *  Records for one stage, indexed by content type
+     */
+    private static class Records {
+
+        final String stage;
+        final Record all;
+        // content types in one byte
+        final AtomicReferenceArray<Record> types = new AtomicReferenceArray<>(256);
+        // other types (should not happen)
+        final Map<Integer, Record> others = new ConcurrentHashMap<>();
+
+        Records(String stage) {
+            this.stage = stage;
+            this.all = new Record(stage, ALL_TYPES);
+        }
+
+        Record find(int type) {
+            if (type >= 0 && type < 256) {
+                return types.get(type);
+            }
+            return others.get(type);
+        }
+
+        Record get(int type) {
+            Record record = find(type);
+            if (record != null) {
+                return record;
+            } else if (type >= 0 && type < 256) {
+                types.compareAndSet(type, null, new Record(stage, type));
+                return types.get(type);
+            }
+            return others.computeIfAbsent(type, t -> new Record(stage, t));
+        }
+
+        List<Record> list() {
+            List<Record> records = new ArrayList<>();
+            Record record;
+            for (int type = 0; type < 256; ++type) {
+                record = types.get(type);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+            records.addAll(others.values());
+            return records;
+        }
+    }
+
+    private static class Record {
+
+        final String stage;
+        final int type;
+        final Histogram histogram = new Histogram();
+        final AtomicLong errors = new AtomicLong(0);
+
+        Record(String stage, int type) {
+            this.stage = stage;
+            this.type = type;
+        }
+
+        void record(long nanos, Throwable error) {
+            histogram.record(nanos);
+            if (error != null) {
+                errors.incrementAndGet();
+            }
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(stage, type, histogram.getCount(), errors.get(),
+                    histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax());
+        }
+    }
+
+    /**
+     *  Statistics for stage (time in nanoseconds)
+     */
+    public static class Snapshot {
+
+        public final String stage;
+        public final int type;  // ALL_TYPES for all content types
+
+        public final long count;
+        public final long errors;
+
+        public final long p50;
+        public final long p99;
+        public final long max;
+
+        public Snapshot(String stage, int type, long count, long errors, long p50, long p99, long max) {
+            super();
+            this.stage = stage;
+            this.type = type;
+            this.count = count;
+            this.errors = errors;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "<" + getClass().getSimpleName() + " stage=\"" + stage + "\" type=" + type
+                    + " count=" + count + " errors=" + errors
+                    + " p50=" + p50 + " p99=" + p99 + " max=" + max + " />";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Message Shortener
+ *  ~~~~~~~~~~~~~~~~~
+ *
+ *  Translate the keys of network message to/from short keys:
+ *
+ *      'S' - 'sender'
+ *      'R' - 'receiver'
+ *      'W' - 'time'
+ *      'T' - 'type'
+ *      'G' - 'group'
+ *      ------------------
+ *      'D' - 'data'
+ *      'V' - 'signature'
+ *      'K' - 'key', 'keys'
+ *      ------------------
+ *      'M' - 'meta'
+ *      'P' - 'visa'
+ */
+public final class MessageShortener {
+
+    // long key => short key
+    private static final Map<String, String> SHORT_KEYS = new HashMap<>();
+    // short key => long key
+    private static final Map<String, String> LONG_KEYS = new HashMap<>();
+
+    private static void bind(String longKey, String shortKey) {
+        SHORT_KEYS.put(longKey, shortKey);
+        LONG_KEYS.put(shortKey, longKey);
+    }
+
+    static {
+        bind("sender", "S");
+        bind("receiver", "R");
+        bind("time", "W");
+        bind("type", "T");
+        bind("group", "G");
+
+        bind("data", "D");
+        bind("signature", "V");
+        bind("keys", "K");
+        bind("key", "K");
+
+        bind("meta", "M");
+        bind("visa", "P");
+    }
+
+    /**
+     *  Check whether the message info is using short keys
+     *
+     * @param msg - message info
+     * @return true on compact
+     */
+    public static boolean isCompact(Map<String, Object> msg) {
+        return msg.containsKey("S") && !msg.containsKey("sender");
+    }
+
+    /**
+     *  Translate keys of the network message to short keys
+     *
+     * @param msg - message info
+     * @return compact message info
+     */
+    public static Map<String, Object> compress(Map<String, Object> msg) {
+        Map<String, Object> info = new HashMap<>(msg.size());
+        String name;
+        for (Map.Entry<String, Object> entry : msg.entrySet()) {
+            name = SHORT_KEYS.get(entry.getKey());
+            if (name == null || info.containsKey(name)) {
+                // keep the original key
+                name = entry.getKey();
+            }
+            info.put(name, entry.getValue());
+        }
+        return info;
+    }
+
+    /**
+     *  Translate short keys of the network message back
+     *
+     * @param msg - message info (compact or not)
+     * @return message info with long keys
+     */
+    public static Map<String, Object> extract(Map<String, Object> msg) {
+        if (!isCompact(msg)) {
+            // not compact
+            return msg;
+        }
+        Map<String, Object> info = new HashMap<>(msg.size());
+        String name;
+        Object value;
+        for (Map.Entry<String, Object> entry : msg.entrySet()) {
+            name = entry.getKey();
+            value = entry.getValue();
+            if ("K".equals(name)) {
+                // 'K' - 'key' for personal message,
+                //       'keys' for group message
+                name = value instanceof Map ? "keys" : "key";
+            } else if (LONG_KEYS.containsKey(name)) {
+                name = LONG_KEYS.get(name);
+            }
+            info.put(name, value);
+        }
+        return info;
+    }
+}
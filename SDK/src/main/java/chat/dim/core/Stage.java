@@ -0,0 +1,249 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Processing Stage
+ *  ~~~~~~~~~~~~~~~~
+ *
+ *  Thread pool with bounded queue,
+ *  when the queue is full, the new task will be handled by the policy.
+ *
+ *  An ordered stage runs each worker thread with its own queue (lane),
+ *  tasks with the same key are always put into the same lane,
+ *  so they will be run one by one in the order they arrived.
+ *  NOTICE: policy CALLER_RUNS cannot keep the order when the lane is full.
+ */
+public class Stage {
+
+    public enum Policy {
+        ABORT,           // reject the new task
+        DISCARD_OLDEST,  // shed the oldest task in queue, and accept the new one
+        CALLER_RUNS,     // run the new task in caller's thread (block the producer)
+    }
+
+    private final String name;
+    private final int capacity;
+    private final Policy policy;
+    private final boolean ordered;
+    private final ThreadPoolExecutor[] lanes;
+
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     *  Create stage
+     *
+     * @param name     - stage name
+     * @param threads  - number of worker threads
+     * @param capacity - max tasks waiting in queue
+     * @param policy   - overload policy
+     */
+    public Stage(String name, int threads, int capacity, Policy policy) {
+        this(name, threads, capacity, policy, false);
+    }
+
+    /**
+     *  Create stage
+     *
+     * @param name     - stage name
+     * @param threads  - number of worker threads
+     * @param capacity - max tasks waiting in queue
+     * @param policy   - overload policy
+     * @param ordered  - true for running tasks with the same key one by one
+     */
+    public Stage(String name, int threads, int capacity, Policy policy, boolean ordered) {
+        super();
+        this.name = name;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.ordered = ordered;
+        if (ordered) {
+            // one thread for each lane
+            int size = Math.max(1, capacity / threads);
+            lanes = new ThreadPoolExecutor[threads];
+            for (int i = 0; i < threads; ++i) {
+                lanes[i] = createPool(1, size);
+            }
+        } else {
+            lanes = new ThreadPoolExecutor[]{createPool(threads, capacity)};
+        }
+    }
+
+    private ThreadPoolExecutor createPool(int threads, int capacity) {
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(capacity);
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "stage-" + name);
+            thread.setDaemon(true);
+            return thread;
+        }, new Handler());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor pool : lanes) {
+            depth += pool.getQueue().size();
+        }
+        return depth;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        long count = 0;
+        for (ThreadPoolExecutor pool : lanes) {
+            count += pool.getCompletedTaskCount();
+        }
+        return count;
+    }
+
+    /**
+     *  Check whether the queue is almost full (over 75%)
+     *
+     * @return true on overloaded
+     */
+    public boolean isOverloaded() {
+        return getQueueDepth() * 4 >= capacity * 3;
+    }
+
+    /**
+     *  Run task in this stage
+     *
+     * @param task     - job
+     * @param fallback - called when the task rejected/discarded
+     */
+    public void execute(Runnable task, Runnable fallback) {
+        int index = lanes.length == 1 ? 0 : (next.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+        lanes[index].execute(new Job(task, fallback));
+    }
+
+    /**
+     *  Run task in this stage, after the tasks with the same key
+     *  (only for ordered stage, otherwise the key is ignored)
+     *
+     * @param key      - task key, e.g.: sender ID
+     * @param task     - job
+     * @param fallback - called when the task rejected/discarded
+     */
+    public void execute(Object key, Runnable task, Runnable fallback) {
+        int index = lanes.length == 1 ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+        lanes[index].execute(new Job(task, fallback));
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : lanes) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<" + getClass().getSimpleName() + " name=\"" + name + "\" depth=" + getQueueDepth()
+                + " capacity=" + capacity + " rejected=" + rejected.get() + " />";
+    }
+
+    private class Handler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                rejected.incrementAndGet();
+                ((Job) runnable).fallback.run();
+            } else if (policy == Policy.CALLER_RUNS) {
+                runnable.run();
+            } else if (policy == Policy.DISCARD_OLDEST) {
+                Runnable eldest = executor.getQueue().poll();
+                if (eldest != null) {
+                    rejected.incrementAndGet();
+                    ((Job) eldest).fallback.run();
+                }
+                // try again in the same lane
+                executor.execute(runnable);
+            } else {
+                rejected.incrementAndGet();
+                ((Job) runnable).fallback.run();
+            }
+        }
+    }
+
+    private static class Job implements Runnable {
+
+        final Runnable task;
+        final Runnable fallback;
+
+        Job(Runnable task, Runnable fallback) {
+            this.task = task;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    // error for tasks rejected by stage
+    public static class OverloadedException extends RejectedExecutionException {
+
+        private static final long serialVersionUID = 1L;
+
+        public OverloadedException(String stage) {
+            super("stage overloaded: " + stage);
+        }
+    }
+}
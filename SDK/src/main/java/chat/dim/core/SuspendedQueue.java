@@ -0,0 +1,272 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.core;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.dim.Facebook;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.Message;
+import chat.dim.protocol.ReliableMessage;
+
+/**
+ *  Suspended Messages
+ *  ~~~~~~~~~~~~~~~~~~
+ *
+ *  Messages waiting for the meta/visa of an entity:
+ *      1. outgoing messages waiting for receiver's visa key;
+ *      2. incoming messages waiting for sender's meta.
+ *  When the meta/document of the entity updated, the messages will be
+ *  passed back to the delegate in batch.
+ */
+public class SuspendedQueue implements Facebook.Observer {
+
+    private final int capacity;
+    private final int maxPerEntity;
+    private final long lifeSpan;  // milliseconds
+
+    // waiting ID => messages
+    private final Map<ID, List<Holder>> suspended = new LinkedHashMap<>();
+    private int count = 0;
+    private final Lock lock = new ReentrantLock();
+
+    private WeakReference<Delegate> delegateRef = null;
+
+    /**
+     *  Create message queue
+     *
+     * @param capacity     - max messages in the queue
+     * @param maxPerEntity - max messages waiting for the same entity
+     * @param lifeSpan     - milliseconds before expired
+     */
+    public SuspendedQueue(int capacity, int maxPerEntity, long lifeSpan) {
+        super();
+        this.capacity = capacity;
+        this.maxPerEntity = maxPerEntity;
+        this.lifeSpan = lifeSpan;
+    }
+
+    public SuspendedQueue() {
+        this(1024, 32, 300 * 1000);
+    }
+
+    public Delegate getDelegate() {
+        return delegateRef == null ? null : delegateRef.get();
+    }
+
+    public void setDelegate(Delegate delegate) {
+        delegateRef = new WeakReference<>(delegate);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *  Suspend outgoing message for waiting receiver's visa key
+     *
+     * @param iMsg    - plain message
+     * @param waiting - receiver ID
+     */
+    public void suspend(InstantMessage iMsg, ID waiting) {
+        push(iMsg, waiting);
+    }
+
+    /**
+     *  Suspend incoming message for waiting sender's meta
+     *
+     * @param rMsg    - network message
+     * @param waiting - sender ID
+     */
+    public void suspend(ReliableMessage rMsg, ID waiting) {
+        push(rMsg, waiting);
+    }
+
+    private void push(Message msg, ID waiting) {
+        Holder holder = new Holder(msg, System.currentTimeMillis() + lifeSpan);
+        lock.lock();
+        try {
+            List<Holder> messages = suspended.get(waiting);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                suspended.put(waiting, messages);
+            } else if (messages.size() >= maxPerEntity) {
+                // drop the oldest message for this entity
+                messages.remove(0);
+                --count;
+            }
+            messages.add(holder);
+            ++count;
+            if (count > capacity) {
+                // drop the oldest message of the eldest entity
+                Iterator<List<Holder>> iterator = suspended.values().iterator();
+                messages = iterator.next();
+                messages.remove(0);
+                if (messages.isEmpty()) {
+                    iterator.remove();
+                }
+                --count;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *  Resume messages waiting for this entity
+     *
+     * @param identifier - entity ID
+     */
+    public void resume(ID identifier) {
+        List<Holder> messages;
+        lock.lock();
+        try {
+            messages = suspended.remove(identifier);
+            if (messages != null) {
+                count -= messages.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (messages == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<InstantMessage> outgoing = new ArrayList<>();
+        List<ReliableMessage> incoming = new ArrayList<>();
+        for (Holder item : messages) {
+            if (item.expired < now) {
+                continue;
+            }
+            if (item.msg instanceof InstantMessage) {
+                outgoing.add((InstantMessage) item.msg);
+            } else if (item.msg instanceof ReliableMessage) {
+                incoming.add((ReliableMessage) item.msg);
+            }
+        }
+        Delegate delegate = getDelegate();
+        if (delegate == null) {
+            return;
+        }
+        if (outgoing.size() > 0) {
+            delegate.resumeInstantMessages(outgoing, identifier);
+        }
+        if (incoming.size() > 0) {
+            delegate.resumeReliableMessages(incoming, identifier);
+        }
+    }
+
+    /**
+     *  Remove expired messages
+     *
+     * @return number of messages removed
+     */
+    public int purge() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        lock.lock();
+        try {
+            Iterator<List<Holder>> iterator = suspended.values().iterator();
+            List<Holder> messages;
+            while (iterator.hasNext()) {
+                messages = iterator.next();
+                Iterator<Holder> it = messages.iterator();
+                while (it.hasNext()) {
+                    if (it.next().expired < now) {
+                        it.remove();
+                        ++removed;
+                    }
+                }
+                if (messages.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+            count -= removed;
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    //-------- Facebook.Observer
+
+    @Override
+    public void onEntityUpdated(ID identifier) {
+        resume(identifier);
+    }
+
+    private static class Holder {
+
+        final Message msg;
+        final long expired;
+
+        Holder(Message msg, long expired) {
+            this.msg = msg;
+            this.expired = expired;
+        }
+    }
+
+    /**
+     *  Suspended Queue Delegate
+     *  ~~~~~~~~~~~~~~~~~~~~~~~~
+     */
+    public interface Delegate {
+
+        /**
+         *  Outgoing messages can be encrypted now
+         *
+         * @param messages   - plain messages
+         * @param identifier - receiver ID
+         */
+        void resumeInstantMessages(List<InstantMessage> messages, ID identifier);
+
+        /**
+         *  Incoming messages can be verified now
+         *
+         * @param messages   - network messages
+         * @param identifier - sender ID
+         */
+        void resumeReliableMessages(List<ReliableMessage> messages, ID identifier);
+    }
+}
@@ -32,6 +32,9 @@ package chat.dim.cpu;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import chat.dim.Facebook;
 import chat.dim.Messenger;
@@ -41,30 +44,96 @@ import chat.dim.protocol.ReliableMessage;
 
 public class ArrayContentProcessor extends BaseContentProcessor {
 
+    // thread pool for processing items in parallel
+    private Executor executor = null;
+
     public ArrayContentProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
+    /**
+     *  Set thread pool for processing items in parallel,
+     *  only items with thread-safe processors will be dispatched to it
+     *
+     * @param executor - thread pool, null means processing one by one
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
     @Override
     public List<Content> process(Content content, ReliableMessage rMsg) {
         assert content instanceof ArrayContent : "array content error: " + content;
         List<Content> array = ((ArrayContent) content).getContents();
+        Executor pool = executor;
+        if (pool != null && array.size() > 1) {
+            return processParallel(array, rMsg, pool);
+        }
         // call messenger to process it
         Messenger messenger = getMessenger();
         List<Content> responses = new ArrayList<>();
-        Content res;
-        List<Content> results;
         for (Content item : array) {
-            results = messenger.processContent(item, rMsg);
-            if (results == null) {
-                res = ArrayContent.create(new ArrayList<>());
-            } else if (results.size() == 1) {
-                res = results.get(0);
+            responses.add(pack(messenger.processContent(item, rMsg)));
+        }
+        return responses.size() > 0 ? responses : null;
+    }
+
+    private List<Content> processParallel(List<Content> array, ReliableMessage rMsg, Executor pool) {
+        Messenger messenger = getMessenger();
+        List<CompletableFuture<List<Content>>> tasks = new ArrayList<>(array.size());
+        // 1. dispatch items with thread-safe processors
+        for (Content item : array) {
+            if (messenger.getContentProcessor(item) instanceof ContentProcessor.ThreadSafe) {
+                tasks.add(CompletableFuture.supplyAsync(() -> messenger.processContent(item, rMsg), pool));
             } else {
-                res = ArrayContent.create(results);
+                tasks.add(null);
             }
-            responses.add(res);
         }
-        return responses.size() > 0 ? responses : null;
+        // 2. process other items in current thread
+        List<Content> responses = new ArrayList<>(array.size());
+        CompletableFuture<List<Content>> task;
+        for (int index = 0; index < array.size(); ++index) {
+            task = tasks.get(index);
+            if (task == null) {
+                responses.add(pack(messenger.processContent(array.get(index), rMsg)));
+            } else {
+                responses.add(null);
+            }
+        }
+        // 3. collect results in original order
+        for (int index = 0; index < tasks.size(); ++index) {
+            task = tasks.get(index);
+            if (task != null) {
+                responses.set(index, pack(join(task)));
+            }
+        }
+        return responses;
+    }
+
+    private static List<Content> join(CompletableFuture<List<Content>> task) {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            // throw the same error as processing in current thread
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static Content pack(List<Content> results) {
+        if (results == null) {
+            return ArrayContent.create(new ArrayList<>());
+        } else if (results.size() == 1) {
+            return results.get(0);
+        } else {
+            return ArrayContent.create(results);
+        }
     }
 }
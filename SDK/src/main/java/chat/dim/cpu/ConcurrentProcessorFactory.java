@@ -0,0 +1,126 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.cpu;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import chat.dim.Facebook;
+import chat.dim.Messenger;
+import chat.dim.core.TwinsHelper;
+import chat.dim.protocol.Command;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.GroupCommand;
+
+/**
+ *  Thread-safe CPU Factory
+ *  ~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Content processors are indexed by type (0 ~ 255) in array,
+ *  command processors are indexed by name in concurrent map,
+ *  each processor will be created only once,
+ *  and the types/names without processor are remembered too.
+ */
+public class ConcurrentProcessorFactory extends TwinsHelper implements ContentProcessor.Factory {
+
+    // placeholder for processor not found
+    private static final ContentProcessor NONE = (content, rMsg) -> null;
+
+    private final AtomicReferenceArray<ContentProcessor> contentArray = new AtomicReferenceArray<>(256);
+    private final Map<Integer, ContentProcessor> contentMap = new ConcurrentHashMap<>();  // other types
+    private final Map<String, ContentProcessor> commandMap = new ConcurrentHashMap<>();
+
+    private final ContentProcessor.Creator creator;
+
+    public ConcurrentProcessorFactory(Facebook facebook, Messenger messenger, ContentProcessor.Creator creator) {
+        super(facebook, messenger);
+        this.creator = creator;
+    }
+
+    @Override
+    public ContentProcessor getProcessor(Content content) {
+        ContentProcessor cpu;
+        int type = content.getType();
+        if (content instanceof Command) {
+            String name = ((Command) content).getCmd();
+            // command processor
+            cpu = getCommandProcessor(type, name);
+            if (cpu != null) {
+                return cpu;
+            } else if (content instanceof GroupCommand) {
+                // group command processor
+                cpu = getCommandProcessor(type, "group");
+                if (cpu != null) {
+                    return cpu;
+                }
+            }
+        }
+        // content processor
+        return getContentProcessor(type);
+    }
+
+    @Override
+    public ContentProcessor getContentProcessor(int type) {
+        if (type < 0 || type >= contentArray.length()) {
+            // unknown type
+            ContentProcessor cpu = contentMap.get(type);
+            if (cpu == null) {
+                cpu = contentMap.computeIfAbsent(type, key -> orNone(creator.createContentProcessor(key)));
+            }
+            return cpu == NONE ? null : cpu;
+        }
+        ContentProcessor cpu = contentArray.get(type);
+        if (cpu == null) {
+            synchronized (contentArray) {
+                cpu = contentArray.get(type);
+                if (cpu == null) {
+                    cpu = orNone(creator.createContentProcessor(type));
+                    contentArray.set(type, cpu);
+                }
+            }
+        }
+        return cpu == NONE ? null : cpu;
+    }
+
+    @Override
+    public ContentProcessor getCommandProcessor(int type, String name) {
+        ContentProcessor cpu = commandMap.get(name);
+        if (cpu == null) {
+            cpu = commandMap.computeIfAbsent(name, key -> orNone(creator.createCommandProcessor(type, key)));
+        }
+        return cpu == NONE ? null : cpu;
+    }
+
+    private static ContentProcessor orNone(ContentProcessor cpu) {
+        return cpu == null ? NONE : cpu;
+    }
+}
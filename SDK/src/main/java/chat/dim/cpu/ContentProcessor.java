@@ -50,6 +50,16 @@ public interface ContentProcessor {
      */
     List<Content> process(Content content, ReliableMessage rMsg);
 
+    /**
+     *  Thread-safe CPU
+     *  ~~~~~~~~~~~~~~~
+     *
+     *  Mark a processor which can process different contents at the same time,
+     *  so the items of an array content can be processed in parallel.
+     */
+    interface ThreadSafe {
+    }
+
     /**
      *  CPU Creator
      *  ~~~~~~~~~~~
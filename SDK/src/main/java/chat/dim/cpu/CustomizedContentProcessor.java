@@ -30,7 +30,11 @@
  */
 package chat.dim.cpu;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import chat.dim.Facebook;
 import chat.dim.Messenger;
@@ -38,24 +42,102 @@ import chat.dim.protocol.Content;
 import chat.dim.protocol.CustomizedContent;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.ReliableMessage;
+import chat.dim.utils.Histogram;
 
 /**
  *  Customized Content Processing Unit
  *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Handlers can be registered for (app, mod, act) routes,
+ *  contents without registered route will be processed by 'filter()' and 'fetch()'.
+ *
+ *  NOTICE: contents with registered route will NOT be passed to 'filter()',
+ *          so the handlers should check permissions by themselves.
  */
 public class CustomizedContentProcessor extends BaseContentProcessor implements CustomizedContentHandler {
 
     public static String FMT_APP_NOT_SUPPORT = "Customized Content (app: %s) not support yet!";
     public static String FMT_ACT_NOT_SUPPORT = "Customized Content (app: %s, mod: %s, act: %s) not support yet!";
 
+    // action for matching all actions in a module
+    public static final String ANY_ACTION = "*";
+
+    // app => mod => act => route
+    private final Map<String, Map<String, Map<String, Route>>> routes = new ConcurrentHashMap<>();
+
     public CustomizedContentProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
+    /**
+     *  Register handler for action
+     *
+     * @param app     - application ID
+     * @param mod     - module name
+     * @param act     - action name, ANY_ACTION means all actions in this module
+     * @param handler - customized content handler
+     */
+    public void register(String app, String mod, String act, CustomizedContentHandler handler) {
+        Route route = new Route(app, mod, act, handler);
+        routes.computeIfAbsent(app, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(mod, k -> new ConcurrentHashMap<>())
+                .put(act, route);
+    }
+
+    public void unregister(String app, String mod, String act) {
+        Map<String, Map<String, Route>> modules = routes.get(app);
+        if (modules != null) {
+            Map<String, Route> actions = modules.get(mod);
+            if (actions != null) {
+                actions.remove(act);
+            }
+        }
+    }
+
+    /**
+     *  Get all registered routes with their statistics
+     *
+     * @return routes
+     */
+    public List<Route> getRoutes() {
+        List<Route> array = new ArrayList<>();
+        for (Map<String, Map<String, Route>> modules : routes.values()) {
+            for (Map<String, Route> actions : modules.values()) {
+                array.addAll(actions.values());
+            }
+        }
+        return array;
+    }
+
+    protected Route getRoute(String app, String mod, String act) {
+        if (app == null || mod == null) {
+            return null;
+        }
+        Map<String, Map<String, Route>> modules = routes.get(app);
+        if (modules == null) {
+            return null;
+        }
+        Map<String, Route> actions = modules.get(mod);
+        if (actions == null) {
+            return null;
+        }
+        Route route = act == null ? null : actions.get(act);
+        if (route == null) {
+            route = actions.get(ANY_ACTION);
+        }
+        return route;
+    }
+
     @Override
     public List<Content> process(Content content, ReliableMessage rMsg) {
         assert content instanceof CustomizedContent : "customized content error: " + content;
         CustomizedContent customized = (CustomizedContent) content;
+        // 0. check registered routes
+        String act = customized.getAction();
+        Route route = getRoute(customized.getApplication(), customized.getModule(), act);
+        if (route != null) {
+            return route.handle(act, rMsg.getSender(), customized, rMsg);
+        }
         // 1. check app id
         String app = customized.getApplication();
         List<Content> res = filter(app, customized, rMsg);
@@ -71,7 +153,6 @@ public class CustomizedContentProcessor extends BaseContentProcessor implements
             return null;
         }
         // 3. do the job
-        String act = customized.getAction();
         ID sender = rMsg.getSender();
         return handler.handleAction(act, sender, customized, rMsg);
     }
@@ -97,4 +178,78 @@ public class CustomizedContentProcessor extends BaseContentProcessor implements
         String text = String.format(FMT_ACT_NOT_SUPPORT, app, mod, act);
         return respondText(text, content.getGroup());
     }
+
+    /**
+     *  Route for customized content handler
+     *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+     */
+    public static class Route {
+
+        private final String app;
+        private final String mod;
+        private final String act;
+        private final CustomizedContentHandler handler;
+
+        // statistics
+        private final Histogram latency = new Histogram();
+        private final AtomicLong errors = new AtomicLong(0);
+
+        public Route(String app, String mod, String act, CustomizedContentHandler handler) {
+            this.app = app;
+            this.mod = mod;
+            this.act = act;
+            this.handler = handler;
+        }
+
+        public String getApplication() {
+            return app;
+        }
+
+        public String getModule() {
+            return mod;
+        }
+
+        public String getAction() {
+            return act;
+        }
+
+        public CustomizedContentHandler getHandler() {
+            return handler;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getErrorCount() {
+            return errors.get();
+        }
+
+        /**
+         *  Get time costs (nanoseconds) for handling actions
+         *
+         * @return latency histogram
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        List<Content> handle(String act, ID sender, CustomizedContent content, ReliableMessage rMsg) {
+            long start = System.nanoTime();
+            try {
+                return handler.handleAction(act, sender, content, rMsg);
+            } catch (RuntimeException e) {
+                errors.incrementAndGet();
+                throw e;
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<Route app=\"" + app + "\" mod=\"" + mod + "\" act=\"" + act + "\" count=" + getCount()
+                    + " errors=" + getErrorCount() + " p99=" + latency.getPercentile(99) + " />";
+        }
+    }
 }
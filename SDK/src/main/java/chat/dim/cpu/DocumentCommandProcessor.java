@@ -40,6 +40,9 @@ import chat.dim.protocol.DocumentCommand;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.Meta;
 import chat.dim.protocol.ReliableMessage;
+import chat.dim.utils.LRUCache;
+import chat.dim.utils.RateLimiter;
+import chat.dim.utils.SingleFlight;
 
 public class DocumentCommandProcessor extends MetaCommandProcessor {
 
@@ -48,20 +51,76 @@ public class DocumentCommandProcessor extends MetaCommandProcessor {
     public static String FMT_DOC_NOT_ACCEPTED = "Document not accept: %s";
     public static String FMT_DOC_ACCEPTED = "Document received: %s";
 
+    // documents loaded for queries: "ID type" => (document, meta)
+    private final LRUCache<String, Loaded> documents = new LRUCache<>(4096);
+    private final SingleFlight<String, Loaded> flights = new SingleFlight<>();
+    private long documentLifeSpan = 3000;  // milliseconds
+
+    // document queries from each sender, no limit by default
+    private RateLimiter<ID> queryLimiter = null;
+
     public DocumentCommandProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
+    /**
+     *  Set time for answering queries with the loaded document before reloading it
+     *
+     * @param lifeSpan - milliseconds
+     */
+    public void setDocumentLifeSpan(long lifeSpan) {
+        this.documentLifeSpan = lifeSpan;
+    }
+
+    public long getDocumentLifeSpan() {
+        return documentLifeSpan;
+    }
+
+    /**
+     *  Set rate limiter for document queries from each sender,
+     *  queries over the limit will be ignored without response
+     *
+     * @param limiter - null means no limit
+     */
+    public void setQueryLimiter(RateLimiter<ID> limiter) {
+        this.queryLimiter = limiter;
+    }
+
+    public RateLimiter<ID> getQueryLimiter() {
+        return queryLimiter;
+    }
+
     private List<Content> getDocument(ID identifier, String type) {
+        String key = identifier + " " + type;
+        Loaded loaded = documents.get(key);
+        if (loaded == null || loaded.time + documentLifeSpan <= System.currentTimeMillis()) {
+            // concurrent queries for the same document share one loading
+            final Loaded cached = loaded;
+            loaded = flights.execute(key, () -> load(identifier, type, key, cached));
+        }
+        if (loaded == null) {
+            String text = String.format(FMT_DOC_NOT_FOUND, identifier);
+            return respondText(text, null);
+        }
+        // build a new response with its own 'sn' and 'time'
+        return respondContent(DocumentCommand.response(identifier, loaded.meta, loaded.document));
+    }
+
+    private Loaded load(ID identifier, String type, String key, Loaded cached) {
         Facebook facebook = getFacebook();
         Document doc = facebook.getDocument(identifier, type);
         if (doc == null) {
-            String text = String.format(FMT_DOC_NOT_FOUND, identifier);
-            return respondText(text, null);
-        } else {
-            Meta meta = facebook.getMeta(identifier);
-            return respondContent(DocumentCommand.response(identifier, meta, doc));
+            documents.remove(key);
+            return null;
+        }
+        // meta never changes, reuse the one loaded before
+        Meta meta = cached == null ? null : cached.meta;
+        if (meta == null) {
+            meta = facebook.getMeta(identifier);
         }
+        Loaded loaded = new Loaded(doc, meta, System.currentTimeMillis());
+        documents.put(key, loaded);
+        return loaded;
     }
 
     private List<Content> putDocument(ID identifier, Meta meta, Document doc) {
@@ -73,11 +132,21 @@ public class DocumentCommandProcessor extends MetaCommandProcessor {
                 return respondText(text, null);
             }
         }
-        // receive a document for ID
-        if (facebook.saveDocument(doc))  {
+        // receive a document for ID,
+        // reuse the document verified before
+        Document verified = facebook.verifyDocument(doc);
+        if (verified != null && facebook.saveDocument(verified))  {
+            facebook.entityUpdated(identifier);
+            // drop the old document loaded for queries
+            documents.remove(identifier + " " + verified.getType());
+            documents.remove(identifier + " *");
             String text = String.format(FMT_DOC_ACCEPTED, identifier);
             return respondText(text, null);
         } else {
+            if (meta != null) {
+                // meta accepted
+                facebook.entityUpdated(identifier);
+            }
             String text = String.format(FMT_DOC_NOT_ACCEPTED, identifier);
             return respondText(text, null);
         }
@@ -96,6 +165,11 @@ public class DocumentCommandProcessor extends MetaCommandProcessor {
                 if (type == null) {
                     type = "*";  // ANY
                 }
+                RateLimiter<ID> limiter = queryLimiter;
+                if (limiter != null && !limiter.tryAcquire(rMsg.getSender())) {
+                    // too many queries from this sender, ignore it
+                    return null;
+                }
                 return getDocument(identifier, type);
             } else if (identifier.equals(doc.getIdentifier())) {
                 // received a new document for ID
@@ -105,4 +179,17 @@ public class DocumentCommandProcessor extends MetaCommandProcessor {
         // error
         return respondText(STR_DOC_CMD_ERROR, command.getGroup());
     }
+
+    private static class Loaded {
+
+        final Document document;
+        final Meta meta;
+        final long time;
+
+        Loaded(Document document, Meta meta, long time) {
+            this.document = document;
+            this.meta = meta;
+            this.time = time;
+        }
+    }
 }
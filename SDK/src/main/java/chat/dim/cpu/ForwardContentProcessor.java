@@ -32,40 +32,194 @@ package chat.dim.cpu;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import chat.dim.Facebook;
 import chat.dim.Messenger;
 import chat.dim.protocol.Content;
 import chat.dim.protocol.ForwardContent;
 import chat.dim.protocol.ReliableMessage;
+import chat.dim.utils.Histogram;
 
 public class ForwardContentProcessor extends BaseContentProcessor {
 
+    // thread pool for processing secrets in parallel
+    private Executor executor = null;
+    private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+
+    // metrics
+    private final Histogram bundleLatency = new Histogram();
+    private final AtomicLong secretCount = new AtomicLong(0);
+    private final AtomicLong failureCount = new AtomicLong(0);
+
     public ForwardContentProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
+    /**
+     *  Set thread pool for processing secrets in parallel
+     *
+     * @param executor - thread pool, null means processing one by one
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     *  Set max number of secrets in one bundle to be processed by thread pool at the same time,
+     *  the rest will be processed in current thread when all permits are in use
+     *
+     * @param maxConcurrency - max pooled tasks for each bundle
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        assert maxConcurrency > 0 : "max concurrency error: " + maxConcurrency;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     *  Get time costs (nanoseconds) for processing each bundle
+     *
+     * @return latency histogram
+     */
+    public Histogram getBundleLatency() {
+        return bundleLatency;
+    }
+
+    public long getSecretCount() {
+        return secretCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     *  Called after all secrets in a bundle processed
+     *
+     * @param count    - number of secrets
+     * @param failures - number of secrets failed to process
+     * @param nanos    - time cost
+     */
+    protected void onBundleProcessed(int count, int failures, long nanos) {
+        // override for reporting
+    }
+
+    /**
+     *  Called for each secret failed to process (in original order),
+     *  an empty forward content will be responded for it
+     *
+     * @param secret - secret message in bundle
+     * @param error  - exception thrown
+     * @param rMsg   - message carrying the bundle
+     */
+    protected void onSecretFailed(ReliableMessage secret, RuntimeException error, ReliableMessage rMsg) {
+        // override for logging
+    }
+
     @Override
     public List<Content> process(Content content, ReliableMessage rMsg) {
         assert content instanceof ForwardContent : "forward content error: " + content;
         ForwardContent forward = (ForwardContent) content;
         List<ReliableMessage> secrets = forward.getSecrets();
-        // call messenger to process it
-        Messenger messenger = getMessenger();
-        List<Content> responses = new ArrayList<>();
-        Content res;
-        List<ReliableMessage> results;
+        long start = System.nanoTime();
+        List<Result> results;
+        Executor pool = executor;
+        if (pool != null && secrets.size() > 1) {
+            results = processParallel(secrets, pool);
+        } else {
+            results = new ArrayList<>(secrets.size());
+            for (ReliableMessage item : secrets) {
+                results.add(processSecret(item));
+            }
+        }
+        // build responses in original order
+        List<Content> responses = new ArrayList<>(results.size());
+        int failures = 0;
+        for (Result item : results) {
+            if (item.error != null) {
+                ++failures;
+                onSecretFailed(item.secret, item.error, rMsg);
+            }
+            responses.add(pack(item.messages));
+        }
+        long nanos = System.nanoTime() - start;
+        bundleLatency.record(nanos);
+        secretCount.addAndGet(results.size());
+        failureCount.addAndGet(failures);
+        onBundleProcessed(results.size(), failures, nanos);
+        return responses.size() > 0 ? responses : null;
+    }
+
+    private List<Result> processParallel(List<ReliableMessage> secrets, Executor pool) {
+        Semaphore permits = new Semaphore(maxConcurrency);
+        List<CompletableFuture<Result>> tasks = new ArrayList<>(secrets.size());
         for (ReliableMessage item : secrets) {
-            results = messenger.processReliableMessage(item);
-            if (results == null) {
-               res = ForwardContent.create(new ArrayList<>());
-            } else if (results.size() == 1) {
-                res = ForwardContent.create(results.get(0));
+            if (permits.tryAcquire()) {
+                try {
+                    tasks.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return processSecret(item);
+                        } finally {
+                            permits.release();
+                        }
+                    }, pool));
+                } catch (RejectedExecutionException e) {
+                    // pool is full or shut down, process in current thread
+                    permits.release();
+                    tasks.add(CompletableFuture.completedFuture(processSecret(item)));
+                }
             } else {
-                res = ForwardContent.create(results);
+                // all permits in use, process in current thread
+                tasks.add(CompletableFuture.completedFuture(processSecret(item)));
             }
-            responses.add(res);
         }
-        return responses.size() > 0 ? responses : null;
+        List<Result> results = new ArrayList<>(tasks.size());
+        for (CompletableFuture<Result> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    private Result processSecret(ReliableMessage item) {
+        Result result = new Result(item);
+        try {
+            result.messages = getMessenger().processReliableMessage(item);
+        } catch (RuntimeException e) {
+            // isolate failure, respond empty content for this secret
+            result.error = e;
+        }
+        return result;
+    }
+
+    private static Content pack(List<ReliableMessage> results) {
+        if (results == null) {
+            return ForwardContent.create(new ArrayList<>());
+        } else if (results.size() == 1) {
+            return ForwardContent.create(results.get(0));
+        } else {
+            return ForwardContent.create(results);
+        }
+    }
+
+    private static class Result {
+        final ReliableMessage secret;
+        List<ReliableMessage> messages = null;
+        RuntimeException error = null;
+
+        Result(ReliableMessage secret) {
+            this.secret = secret;
+        }
     }
 }
@@ -30,15 +30,22 @@
  */
 package chat.dim.cpu;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import chat.dim.Facebook;
 import chat.dim.Messenger;
+import chat.dim.dkd.cmd.BaseMetaCommand;
 import chat.dim.protocol.Content;
 import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
 import chat.dim.protocol.Meta;
 import chat.dim.protocol.MetaCommand;
 import chat.dim.protocol.ReliableMessage;
+import chat.dim.utils.LRUCache;
 
 public class MetaCommandProcessor extends BaseCommandProcessor {
 
@@ -47,22 +54,45 @@ public class MetaCommandProcessor extends BaseCommandProcessor {
     public static String FMT_META_NOT_ACCEPTED = "Meta not accepted: %s";
     public static String FMT_META_ACCEPTED = "Meta received: %s";
 
+    // meta never changes for an ID, so the response can be reused for queries,
+    // templates are immutable, without 'sn' & 'time'
+    private final LRUCache<ID, Map<String, Object>> responses = new LRUCache<>(4096);
+
     public MetaCommandProcessor(Facebook facebook, Messenger messenger) {
         super(facebook, messenger);
     }
 
     private List<Content> getMeta(ID identifier) {
-        Meta meta = getFacebook().getMeta(identifier);
-        if (meta == null) {
-            String text = String.format(FMT_META_NOT_FOUND, identifier);
-            return respondText(text, null);
-        } else {
-            return respondContent(MetaCommand.response(identifier, meta));
+        Map<String, Object> template = responses.get(identifier);
+        if (template == null) {
+            Meta meta = getFacebook().getMeta(identifier);
+            if (meta == null) {
+                String text = String.format(FMT_META_NOT_FOUND, identifier);
+                return respondText(text, null);
+            }
+            template = MetaCommand.response(identifier, meta).copyMap(false);
+            template.remove("sn");
+            template.remove("time");
+            template = Collections.unmodifiableMap(template);
+            responses.put(identifier, template);
         }
+        return respondContent(new BaseMetaCommand(renew(template)));
+    }
+
+    // copy response template with new 'sn' & 'time'
+    private static Map<String, Object> renew(Map<String, Object> template) {
+        Map<String, Object> info = new HashMap<>(template);
+        Date now = new Date();
+        int type = (Integer) template.get("type");
+        info.put("sn", InstantMessage.generateSerialNumber(type, now));
+        info.put("time", now.getTime() / 1000.0);
+        return info;
     }
 
     private List<Content> putMeta(ID identifier, Meta meta) {
-        if (getFacebook().saveMeta(meta, identifier)) {
+        Facebook facebook = getFacebook();
+        if (facebook.saveMeta(meta, identifier)) {
+            facebook.entityUpdated(identifier);
             String text = String.format(FMT_META_ACCEPTED, identifier);
             return respondText(text, null);
         } else {
@@ -0,0 +1,203 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  Bounded LRU Cache
+ *  ~~~~~~~~~~~~~~~~~
+ *
+ *  Thread-safe cache with max size and optional life span,
+ *  the least recently used entry will be removed when full.
+ */
+public class LRUCache<K, V> {
+
+    private final int capacity;
+    private final long lifeSpan;  // milliseconds
+
+    private final Map<K, Holder<V>> map;
+    private final Lock lock = new ReentrantLock();
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     *  Create cache
+     *
+     * @param capacity - max entries
+     * @param lifeSpan - milliseconds before expired, 0 means never expired
+     */
+    public LRUCache(int capacity, long lifeSpan) {
+        super();
+        assert capacity > 0 : "cache capacity error: " + capacity;
+        this.capacity = capacity;
+        this.lifeSpan = lifeSpan;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public LRUCache(int capacity) {
+        this(capacity, 0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getLifeSpan() {
+        return lifeSpan;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return map.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *  Get cached value
+     *
+     * @param key - cache key
+     * @return null on not found or expired
+     */
+    public V get(K key) {
+        Holder<V> holder;
+        lock.lock();
+        try {
+            holder = map.get(key);
+            if (holder != null && holder.isExpired(System.currentTimeMillis())) {
+                map.remove(key);
+                holder = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (holder == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return holder.value;
+    }
+
+    public void put(K key, V value) {
+        long expired = lifeSpan > 0 ? System.currentTimeMillis() + lifeSpan : 0;
+        lock.lock();
+        try {
+            map.put(key, new Holder<>(value, expired));
+            if (map.size() > capacity) {
+                // remove the eldest entry
+                Iterator<K> iterator = map.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        Holder<V> holder;
+        lock.lock();
+        try {
+            holder = map.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        return holder == null ? null : holder.value;
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *  Remove expired entries
+     *
+     * @return number of entries removed
+     */
+    public int purge() {
+        if (lifeSpan <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        lock.lock();
+        try {
+            Iterator<Holder<V>> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired(now)) {
+                    iterator.remove();
+                    ++count;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    private static class Holder<V> {
+
+        final V value;
+        final long expired;
+
+        Holder(V value, long expired) {
+            this.value = value;
+            this.expired = expired;
+        }
+
+        boolean isExpired(long now) {
+            return expired > 0 && expired < now;
+        }
+    }
+}
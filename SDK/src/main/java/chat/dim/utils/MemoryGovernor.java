@@ -0,0 +1,219 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ *  Memory Governor
+ *  ~~~~~~~~~~~~~~~
+ *
+ *  Listen to heap usage thresholds of JVM,
+ *  when exceeded, shrink the registered caches in priority order.
+ *
+ *  NOTICE: reducers are called in the notification thread while other threads
+ *          are using the caches, so only thread-safe caches can be registered.
+ *
+ *  Usage:
+ *      MemoryGovernor governor = new MemoryGovernor();
+ *      governor.register("facebook", MemoryGovernor.PRIORITY_ENTITY, facebook::trimMemory);
+ *      governor.start(0.8);
+ */
+public class MemoryGovernor implements NotificationListener {
+
+    // lower number will be reduced first
+    public static final int PRIORITY_ENTITY     = 10;
+    public static final int PRIORITY_CIPHER_KEY = 30;
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean reducing = new AtomicBoolean(false);
+
+    private NotificationEmitter emitter = null;
+    private Map<String, Integer> lastReport = null;
+
+    /**
+     *  Register cache reducer
+     *
+     * @param name     - cache name for report
+     * @param priority - lower number will be reduced first
+     * @param reducer  - cache reducer
+     */
+    public void register(String name, int priority, Reducer reducer) {
+        unregister(name);
+        entries.add(new Entry(name, priority, reducer));
+    }
+
+    public void unregister(String name) {
+        for (Entry item : entries) {
+            if (item.name.equals(name)) {
+                entries.remove(item);
+            }
+        }
+    }
+
+    /**
+     *  Start listening heap usage
+     *
+     * @param ratio - threshold of heap usage, 0.0 ~ 1.0
+     */
+    public void start(double ratio) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // NOTICE: only the old generation supports usage threshold,
+            //         eden & survivor spaces are filled up on every minor GC
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            long threshold = (long) (max * ratio);
+            if (pool.isCollectionUsageThresholdSupported()) {
+                // check usage after GC
+                pool.setCollectionUsageThreshold(threshold);
+            } else {
+                pool.setUsageThreshold(threshold);
+            }
+        }
+        if (emitter == null) {
+            emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+            emitter.addNotificationListener(this, null, null);
+        }
+    }
+
+    public void stop() {
+        if (emitter != null) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                onError(null, e);
+            }
+            emitter = null;
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type) ||
+                MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+            reduce();
+        }
+    }
+
+    /**
+     *  Reduce all registered caches in priority order
+     *
+     * @return cache name => objects released; null when reducing by another thread
+     */
+    public Map<String, Integer> reduce() {
+        if (!reducing.compareAndSet(false, true)) {
+            return null;
+        }
+        Map<String, Integer> report = new LinkedHashMap<>();
+        try {
+            List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort((a, b) -> Integer.compare(a.priority, b.priority));
+            for (Entry item : sorted) {
+                try {
+                    report.put(item.name, item.reducer.reduce());
+                } catch (RuntimeException e) {
+                    onError(item.name, e);
+                }
+            }
+            lastReport = Collections.unmodifiableMap(report);
+        } finally {
+            reducing.set(false);
+        }
+        onReduced(report);
+        return report;
+    }
+
+    public Map<String, Integer> getLastReport() {
+        return lastReport;
+    }
+
+    // override for logging
+    protected void onReduced(Map<String, Integer> report) {
+    }
+
+    /**
+     *  Called when failed to reduce a cache or remove the listener
+     *
+     * @param name  - cache name, null for the listener
+     * @param error - exception thrown
+     */
+    protected void onError(String name, Exception error) {
+        // override for logging
+    }
+
+    private static class Entry {
+
+        final String name;
+        final int priority;
+        final Reducer reducer;
+
+        Entry(String name, int priority, Reducer reducer) {
+            this.name = name;
+            this.priority = priority;
+            this.reducer = reducer;
+        }
+    }
+
+    /**
+     *  Cache Reducer
+     *  ~~~~~~~~~~~~~
+     */
+    public interface Reducer {
+
+        /**
+         *  Release some cached objects
+         *
+         * @return number of objects released
+         */
+        int reduce();
+    }
+}
@@ -0,0 +1,120 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  Rate Limiter
+ *  ~~~~~~~~~~~~
+ *
+ *  Allow each key to acquire limited times in a fixed time window,
+ *  only the most recently active keys are tracked.
+ */
+public class RateLimiter<K> {
+
+    private final int limit;
+    private final long window;  // milliseconds
+
+    private final LRUCache<K, Window> windows;
+    private final Lock lock = new ReentrantLock();
+
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    /**
+     *  Create rate limiter
+     *
+     * @param limit    - max acquiring times in a window
+     * @param window   - window length in milliseconds
+     * @param capacity - max keys to be tracked
+     */
+    public RateLimiter(int limit, long window, int capacity) {
+        super();
+        assert limit > 0 && window > 0 : "rate limit error: " + limit + " / " + window + "ms";
+        this.limit = limit;
+        this.window = window;
+        this.windows = new LRUCache<>(capacity, window);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     *  Try to acquire once for key
+     *
+     * @param key - user ID or something
+     * @return false on limit exceeded
+     */
+    public boolean tryAcquire(K key) {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Window current = windows.get(key);
+            if (current == null || current.start + window <= now) {
+                // start a new window
+                windows.put(key, new Window(now));
+                return true;
+            } else if (current.count < limit) {
+                ++current.count;
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public void clear() {
+        windows.clear();
+    }
+
+    private static class Window {
+
+        final long start;
+        int count = 1;
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/* license: https://mit-license.org
+ *
+ *  DIM-SDK : Decentralized Instant Messaging Software Development Kit
+ *
+ *                                Written in 2022 by Moky <albert.moky@gmail.com>
+ *
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2022 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  Segmented LRU Cache
+ *  ~~~~~~~~~~~~~~~~~~~
+ *
+ *  Thread-safe cache with max size and optional life span.
+ *  New entries are put into the probationary segment, and will be promoted
+ *  into the protected segment when accessed again, so the entries used
+ *  frequently will not be flushed by the ones used only once.
+ *  When full, the least recently used entry in probationary segment will be
+ *  removed first.
+ *
+ *  Entries are spread into stripes by key hash, each stripe has its own lock
+ *  and a share of the capacity, so threads using different keys seldom wait
+ *  for each other; the LRU order is kept within each stripe.
+ */
+public class SegmentedCache<K, V> {
+
+    // min entries for each stripe
+    private static final int STRIPE_SIZE = 64;
+    private static final int MAX_STRIPES = 16;
+
+    private final int capacity;
+    private final long lifeSpan;  // milliseconds
+
+    private final Stripe<K, V>[] stripes;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     *  Create cache
+     *
+     * @param capacity - max entries
+     * @param lifeSpan - milliseconds before expired, 0 means never expired
+     */
+    public SegmentedCache(int capacity, long lifeSpan) {
+        this(capacity, lifeSpan, stripesFor(capacity));
+    }
+
+    public SegmentedCache(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     *  Create cache
+     *
+     * @param capacity    - max entries
+     * @param lifeSpan    - milliseconds before expired, 0 means never expired
+     * @param concurrency - number of stripes (power of 2)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SegmentedCache(int capacity, long lifeSpan, int concurrency) {
+        super();
+        assert capacity > 0 : "cache capacity error: " + capacity;
+        assert concurrency > 0 && concurrency <= capacity && (concurrency & (concurrency - 1)) == 0
+                : "concurrency error: " + concurrency;
+        this.capacity = capacity;
+        this.lifeSpan = lifeSpan;
+        this.stripes = new Stripe[concurrency];
+        for (int i = 0; i < concurrency; ++i) {
+            stripes[i] = new Stripe<>(share(capacity, concurrency, i));
+        }
+    }
+
+    private static int stripesFor(int capacity) {
+        int count = 1;
+        while (count < MAX_STRIPES && count * 2 * STRIPE_SIZE <= capacity) {
+            count *= 2;
+        }
+        return count;
+    }
+
+    // capacity for stripe at index
+    private static int share(int total, int count, int index) {
+        return total / count + (index < total % count ? 1 : 0);
+    }
+
+    private Stripe<K, V> stripeFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getLifeSpan() {
+        return lifeSpan;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     *  Get hit rate
+     *
+     * @return 0.0 ~ 1.0
+     */
+    public double getHitRate() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int size() {
+        int count = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            count += stripe.size();
+        }
+        return count;
+    }
+
+    /**
+     *  Get cached value
+     *
+     * @param key - cache key
+     * @return null on not found or expired
+     */
+    public V get(K key) {
+        Holder<V> holder = stripeFor(key).get(key, System.currentTimeMillis());
+        if (holder == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return holder.value;
+    }
+
+    public void put(K key, V value) {
+        long expired = lifeSpan > 0 ? System.currentTimeMillis() + lifeSpan : 0;
+        stripeFor(key).put(key, new Holder<>(value, expired));
+    }
+
+    public V remove(K key) {
+        Holder<V> holder = stripeFor(key).remove(key);
+        return holder == null ? null : holder.value;
+    }
+
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     *  Remove entries until the cache size not greater than target,
+     *  expired entries first, and then least recently used ones
+     *  (each stripe keeps its share of the target)
+     *
+     * @param target - max entries to be kept
+     * @return number of entries removed
+     */
+    public int trim(int target) {
+        int count = purge();
+        for (int i = 0; i < stripes.length; ++i) {
+            count += stripes[i].trim(share(target, stripes.length, i));
+        }
+        return count;
+    }
+
+    /**
+     *  Remove expired entries
+     *
+     * @return number of entries removed
+     */
+    public int purge() {
+        if (lifeSpan <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            count += stripe.purge(now);
+        }
+        return count;
+    }
+
+    /**
+     *  Segmented LRU with its own lock
+     */
+    private static class Stripe<K, V> {
+
+        private final int capacity;
+        private final int protectedCapacity;
+
+        private final Map<K, Holder<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<K, Holder<V>> protection = new LinkedHashMap<>(16, 0.75f, true);
+        private final Lock lock = new ReentrantLock();
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            // 80% for protected segment
+            this.protectedCapacity = Math.max(1, capacity * 4 / 5);
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return probation.size() + protection.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Holder<V> get(K key, long now) {
+            lock.lock();
+            try {
+                Holder<V> holder = protection.get(key);
+                if (holder == null) {
+                    holder = probation.remove(key);
+                    if (holder != null) {
+                        // accessed again, promote it
+                        protect(key, holder);
+                    }
+                }
+                if (holder != null && holder.isExpired(now)) {
+                    protection.remove(key);
+                    holder = null;
+                }
+                return holder;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(K key, Holder<V> holder) {
+            lock.lock();
+            try {
+                if (protection.containsKey(key)) {
+                    protection.put(key, holder);
+                    return;
+                }
+                probation.put(key, holder);
+                if (probation.size() + protection.size() > capacity) {
+                    evict();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void protect(K key, Holder<V> holder) {
+            protection.put(key, holder);
+            if (protection.size() > protectedCapacity) {
+                // demote the eldest protected entry
+                Iterator<Map.Entry<K, Holder<V>>> iterator = protection.entrySet().iterator();
+                Map.Entry<K, Holder<V>> eldest = iterator.next();
+                iterator.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        // remove the least recently used entry
+        private void evict() {
+            Map<K, Holder<V>> segment = probation.isEmpty() ? protection : probation;
+            Iterator<K> iterator = segment.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        Holder<V> remove(K key) {
+            lock.lock();
+            try {
+                Holder<V> holder = probation.remove(key);
+                if (holder == null) {
+                    holder = protection.remove(key);
+                }
+                return holder;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                probation.clear();
+                protection.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int trim(int target) {
+            int count = 0;
+            lock.lock();
+            try {
+                while (probation.size() + protection.size() > target) {
+                    evict();
+                    ++count;
+                }
+            } finally {
+                lock.unlock();
+            }
+            return count;
+        }
+
+        int purge(long now) {
+            lock.lock();
+            try {
+                return purge(probation, now) + purge(protection, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static <K, V> int purge(Map<K, Holder<V>> segment, long now) {
+            int count = 0;
+            Iterator<Holder<V>> iterator = segment.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired(now)) {
+                    iterator.remove();
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static class Holder<V> {
+
+        final V value;
+        final long expired;
+
+        Holder(V value, long expired) {
+            this.value = value;
+            this.expired = expired;
+        }
+
+        boolean isExpired(long now) {
+            return expired > 0 && expired < now;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import chat.dim.core.AsyncRunner;
+
+public class AsyncRunnerTest {
+
+    @Test
+    public void testNested() throws Exception {
+        // single thread for each runner
+        ExecutorService pool1 = Executors.newSingleThreadExecutor();
+        ExecutorService pool2 = Executors.newSingleThreadExecutor();
+        AsyncRunner runner1 = new AsyncRunner(pool1);
+        AsyncRunner runner2 = new AsyncRunner(pool2);
+        try {
+            // runner1 -> runner2 -> runner1
+            String result = runner1.submit(() -> {
+                Thread outer = Thread.currentThread();
+                return AsyncRunner.join(runner2.submit(() -> {
+                    Assert.assertSame(outer, Thread.currentThread());
+                    return AsyncRunner.join(runner1.submit(() -> "OK"));
+                }));
+            }).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("OK", result);
+        } finally {
+            pool1.shutdown();
+            pool2.shutdown();
+        }
+    }
+
+    @Test
+    public void testError() {
+        AsyncRunner runner = new AsyncRunner(null);
+        try {
+            AsyncRunner.join(runner.submit(() -> {
+                throw new IllegalStateException("failed");
+            }));
+            Assert.fail("exception expected");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+    }
+}
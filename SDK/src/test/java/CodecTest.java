@@ -0,0 +1,204 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import chat.dim.core.BinaryMessageCodec;
+import chat.dim.core.MessageShortener;
+import chat.dim.format.Base64;
+
+public class CodecTest {
+
+    static {
+        chat.dim.Plugins.registerPlugins();
+        chat.dim.CryptoPlugins.registerCryptoPlugins();
+    }
+
+    private static final String moky = "moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ";
+    private static final String hulk = "hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj";
+    private static final String group = "Group-1280719982@7oMeWadRw4qat2sL4mTdcQSDAqZSo7LH5G";
+
+    private final Random random = new Random(1234);
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    private String randomBase64(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return Base64.encode(data);
+    }
+
+    private Map<String, Object> personalMessage() {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("sender", moky);
+        msg.put("receiver", hulk);
+        msg.put("time", 1666000000L);
+        msg.put("type", 1);
+        msg.put("data", randomBase64(100));
+        msg.put("key", randomBase64(256));
+        msg.put("signature", randomBase64(256));
+        return msg;
+    }
+
+    private Map<String, Object> groupMessage() {
+        Map<String, Object> keys = new HashMap<>();
+        keys.put(moky, randomBase64(256));
+        keys.put(hulk, randomBase64(128));
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("sender", moky);
+        msg.put("receiver", group);
+        msg.put("group", group);
+        msg.put("time", 1666000000.123);
+        msg.put("data", randomBase64(1000));
+        msg.put("keys", keys);
+        msg.put("signature", randomBase64(256));
+        return msg;
+    }
+
+    private Map<String, Object> roundTrip(Map<String, Object> msg) {
+        byte[] data = codec.encode(msg);
+        Assert.assertTrue(BinaryMessageCodec.isBinary(data));
+        Map<String, Object> info = codec.decode(data);
+        Assert.assertNotNull(info);
+        return info;
+    }
+
+    private static void assertMessageEquals(Map<String, Object> expected, Map<String, Object> actual) {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        Object value;
+        for (Map.Entry<String, Object> entry : expected.entrySet()) {
+            value = actual.get(entry.getKey());
+            if (entry.getValue() instanceof Long) {
+                // varint is decoded as long
+                Assert.assertEquals(entry.getValue(), ((Number) value).longValue());
+            } else {
+                Assert.assertEquals(entry.getKey(), entry.getValue(), value);
+            }
+        }
+    }
+
+    @Test
+    public void testPersonalMessage() {
+        Map<String, Object> msg = personalMessage();
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+
+        // raw data is smaller than JSON with base64
+        byte[] data = codec.encode(msg);
+        Log.info("binary message: " + data.length + " bytes, JSON: " + msg.toString().length() + " chars");
+        Assert.assertTrue(data.length < msg.toString().length());
+    }
+
+    @Test
+    public void testGroupMessage() {
+        Map<String, Object> msg = groupMessage();
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+        Assert.assertEquals(1666000000.123, info.get("time"));
+        Assert.assertEquals(msg.get("keys"), info.get("keys"));
+    }
+
+    @Test
+    public void testKeysNotEncrypted() {
+        // 'keys' with other entries (not base64) is kept as JSON
+        Map<String, Object> msg = groupMessage();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> keys = (Map<String, Object>) msg.get("keys");
+        keys.put("digest", "not base64!");
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+    }
+
+    @Test
+    public void testBroadcastMessage() {
+        // broadcast message is not encrypted, 'data' is plain text
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("sender", moky);
+        msg.put("receiver", "everyone@everywhere");
+        msg.put("time", 1666000000L);
+        msg.put("data", "{\"type\":1,\"sn\":1234,\"text\":\"Hello world!\"}");
+        msg.put("signature", randomBase64(256));
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+
+        // broadcast group message
+        msg.put("receiver", "members@everywhere");
+        msg.put("group", "everyone@everywhere");
+        info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+    }
+
+    @Test
+    public void testNonBase64Fields() {
+        Map<String, Object> msg = personalMessage();
+        msg.put("key", "not base64!");
+        msg.put("signature", "@#$%");
+        msg.put("type", "text");
+        // unknown fields
+        msg.put("app", "chat.dim.sechat");
+        msg.put("sn", 1234);
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+    }
+
+    @Test
+    public void testAttachments() {
+        Map<String, Object> key = new HashMap<>();
+        key.put("algorithm", "ECC");
+        key.put("data", "0279a7662fb7fb54a5b39f7a5a4a8bd3f7b0d6fe1e8a4d4cb1f1ad6fcff3e4bc1c");
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("type", 1);
+        meta.put("key", key);
+        meta.put("seed", "moky");
+        meta.put("fingerprint", randomBase64(64));
+        Map<String, Object> visa = new HashMap<>();
+        visa.put("ID", moky);
+        visa.put("data", "{\"name\":\"Albert Moky\"}");
+        visa.put("signature", randomBase64(64));
+
+        Map<String, Object> msg = personalMessage();
+        msg.put("meta", meta);
+        msg.put("visa", visa);
+        Map<String, Object> info = roundTrip(msg);
+        assertMessageEquals(msg, info);
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] data = codec.encode(groupMessage());
+        // cut inside the last field
+        Assert.assertNull(codec.decode(Arrays.copyOf(data, data.length - 1)));
+        // cut anywhere, should never throw
+        Map<String, Object> info;
+        for (int length = 0; length < data.length; ++length) {
+            info = codec.decode(Arrays.copyOf(data, length));
+            if (length == 0) {
+                Assert.assertNull(info);
+            }
+        }
+        // length overflow
+        byte[] bad = {BinaryMessageCodec.MAGIC, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        Assert.assertNull(codec.decode(bad));
+        // malformed JSON
+        byte[] json = {'{', 'b', 'a', 'd'};
+        for (int tag : new int[]{0x20, 0x21, 0x7F}) {
+            bad = new byte[]{BinaryMessageCodec.MAGIC, (byte) tag, 4, json[0], json[1], json[2], json[3]};
+            Assert.assertNull(codec.decode(bad));
+        }
+        // not binary
+        Assert.assertNull(codec.decode("{\"sender\":\"moky\"}".getBytes()));
+        Assert.assertNull(codec.decode(null));
+    }
+
+    @Test
+    public void testShortKeysInBinary() {
+        Map<String, Object> msg = personalMessage();
+        Map<String, Object> compact = MessageShortener.compress(msg);
+        // short keys are not known by binary codec, but still kept
+        Map<String, Object> info = roundTrip(compact);
+        assertMessageEquals(msg, MessageShortener.extract(info));
+    }
+}
@@ -0,0 +1,45 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import chat.dim.cpu.ForwardContentProcessor;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.ForwardContent;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.ReliableMessage;
+
+public class ForwardContentProcessorTest {
+
+    @Test
+    public void testRejected() {
+        ID alice = TestFacebook.newUser("alice");
+        ID bob = TestFacebook.newUser("bob");
+        TestFacebook aliceBook = new TestFacebook(alice);
+        aliceBook.learn(bob);
+        TestMessenger aliceMessenger = new TestMessenger(aliceBook);
+        TestMessenger bobMessenger = new TestMessenger(new TestFacebook(bob));
+        List<ReliableMessage> secrets = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            byte[] data = aliceMessenger.pack(alice, bob, "s" + i, i == 0);
+            secrets.add(bobMessenger.deserializeMessage(data));
+        }
+
+        ForwardContentProcessor fcp = new ForwardContentProcessor(bobMessenger.facebook, bobMessenger);
+        // thread pool rejects all tasks
+        fcp.setExecutor(command -> {
+            throw new RejectedExecutionException("pool is full");
+        });
+        fcp.setMaxConcurrency(2);
+        List<Content> responses = fcp.process(ForwardContent.create(secrets), null);
+        Assert.assertEquals(3, responses.size());
+        Assert.assertEquals(0, fcp.getFailureCount());
+        Assert.assertEquals(3, bobMessenger.received.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(alice + ": s" + i, bobMessenger.received.get(i));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import chat.dim.utils.Histogram;
+
+public class HistogramTest {
+
+    // bucket precision: 25%
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + ", got " + actual,
+                actual >= expected && actual <= expected + expected / 4);
+    }
+
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMean());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void testSmallValues() {
+        // values less than 4 are counted exactly
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        Assert.assertEquals(0, histogram.getPercentile(25));
+        Assert.assertEquals(1, histogram.getPercentile(50));
+        Assert.assertEquals(2, histogram.getPercentile(75));
+        Assert.assertEquals(3, histogram.getPercentile(100));
+        // negative value is counted as 0
+        histogram.record(-5);
+        Assert.assertEquals(0, histogram.getPercentile(0));
+        Assert.assertEquals(5, histogram.getCount());
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 10000; ++i) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(50005000, histogram.getTotal());
+        Assert.assertEquals(5000, histogram.getMean());
+        Assert.assertEquals(10000, histogram.getMax());
+        assertNear(5000, histogram.getPercentile(50));
+        assertNear(9000, histogram.getPercentile(90));
+        assertNear(9900, histogram.getPercentile(99));
+        // never greater than max
+        Assert.assertEquals(10000, histogram.getPercentile(100));
+
+        // large values
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+        histogram.record(1000000007L);
+        assertNear(1000000007L, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        Histogram histogram = new Histogram();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            tasks.add(pool.submit(() -> {
+                for (long i = 1; i <= 1000; ++i) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        Assert.assertEquals(8000, histogram.getCount());
+        Assert.assertEquals(8 * 500500, histogram.getTotal());
+        Assert.assertEquals(1000, histogram.getMax());
+        assertNear(500, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,90 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import chat.dim.utils.LRUCache;
+
+public class LRUCacheTest {
+
+    @Test
+    public void testLRUEviction() {
+        LRUCache<String, Integer> cache = new LRUCache<>(3);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        // touch 'a', so 'b' becomes the eldest
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("d", 4);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+        Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+        Assert.assertEquals(Integer.valueOf(4), cache.get("d"));
+        Assert.assertEquals(4, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        // replace
+        cache.put("a", 10);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(Integer.valueOf(10), cache.get("a"));
+
+        Assert.assertEquals(Integer.valueOf(10), cache.remove("a"));
+        Assert.assertNull(cache.remove("a"));
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLRUExpiry() throws InterruptedException {
+        LRUCache<String, Integer> cache = new LRUCache<>(10, 50);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+        Thread.sleep(100);
+        cache.put("c", 3);
+        // expired entry is removed when accessed
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(2, cache.size());
+        // purge the others
+        Assert.assertEquals(1, cache.purge());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+
+        // never expired
+        cache = new LRUCache<>(10);
+        cache.put("a", 1);
+        Assert.assertEquals(0, cache.purge());
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        LRUCache<Integer, Integer> cache = new LRUCache<>(100);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            final int seed = t;
+            tasks.add(pool.submit(() -> {
+                Integer value;
+                for (int i = 0; i < 10000; ++i) {
+                    int key = (i * 31 + seed) % 300;
+                    cache.put(key, key);
+                    value = cache.get(key / 2);
+                    Assert.assertTrue(value == null || value == key / 2);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertEquals(80000, cache.getHitCount() + cache.getMissCount());
+    }
+}
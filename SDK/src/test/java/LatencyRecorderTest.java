@@ -0,0 +1,46 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+import chat.dim.core.LatencyRecorder;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testRecords() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        Assert.assertNull(recorder.getSnapshot("verifyMessage"));
+        recorder.onMeasured("verifyMessage", 1, 100, null);
+        recorder.onMeasured("verifyMessage", 1, 200, null);
+        recorder.onMeasured("verifyMessage", 0x88, 300, new RuntimeException());
+        recorder.onMeasured("signMessage", 1, 400, null);
+
+        LatencyRecorder.Snapshot all = recorder.getSnapshot("verifyMessage");
+        Assert.assertEquals(3, all.count);
+        Assert.assertEquals(1, all.errors);
+        Assert.assertEquals(300, all.max);
+        LatencyRecorder.Snapshot text = recorder.getSnapshot("verifyMessage", 1);
+        Assert.assertEquals(2, text.count);
+        Assert.assertEquals(0, text.errors);
+        Assert.assertEquals(200, text.max);
+        Assert.assertEquals(1, recorder.getSnapshot("verifyMessage", 0x88).count);
+        Assert.assertNull(recorder.getSnapshot("verifyMessage", 2));
+
+        // sorted by stage & type
+        List<LatencyRecorder.Snapshot> snapshots = recorder.getSnapshots();
+        Assert.assertEquals(5, snapshots.size());
+        Assert.assertEquals("signMessage", snapshots.get(0).stage);
+        Assert.assertEquals(LatencyRecorder.ALL_TYPES, snapshots.get(0).type);
+        Assert.assertEquals(1, snapshots.get(1).type);
+        Assert.assertEquals("verifyMessage", snapshots.get(2).stage);
+        Assert.assertEquals(LatencyRecorder.ALL_TYPES, snapshots.get(2).type);
+        Assert.assertEquals(1, snapshots.get(3).type);
+        Assert.assertEquals(0x88, snapshots.get(4).type);
+
+        recorder.reset();
+        Assert.assertNull(recorder.getSnapshot("verifyMessage"));
+        Assert.assertEquals(0, recorder.getSnapshots().size());
+    }
+}
@@ -0,0 +1,10 @@
+
+public class Log {
+
+    public static void info(String msg) {
+        StackTraceElement[] traces = Thread.currentThread().getStackTrace();
+        String method = traces[2].getMethodName();
+        int line = traces[2].getLineNumber();
+        System.out.println("[" + method + ":" + line + "] " + msg);
+    }
+}
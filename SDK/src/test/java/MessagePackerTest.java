@@ -0,0 +1,167 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.protocol.Envelope;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+import chat.dim.protocol.TextContent;
+import chat.dim.utils.LRUCache;
+
+public class MessagePackerTest {
+
+    private static final int MEMBERS = 8;
+
+    private static final ID alice = TestFacebook.newUser("alice");
+    private static final List<ID> members = new ArrayList<>();
+    private static final ID group;
+
+    static {
+        members.add(alice);
+        for (int i = 1; i < MEMBERS; ++i) {
+            members.add(TestFacebook.newUser("member" + i));
+        }
+        group = TestFacebook.newGroup(alice, "group", members);
+    }
+
+    private static TestFacebook createFacebook() {
+        TestFacebook facebook = new TestFacebook(alice);
+        facebook.learn(group);
+        for (ID item : members) {
+            facebook.learn(item);
+        }
+        return facebook;
+    }
+
+    private static SecureMessage encrypt(TestMessenger messenger, String text) {
+        Envelope env = Envelope.create(alice, group, null);
+        InstantMessage iMsg = InstantMessage.create(env, TextContent.create(text));
+        return messenger.encryptMessage(iMsg);
+    }
+
+    // messenger with customized 'encryptKey()', recording the calling threads
+    private static class KeyEncryptor extends TestMessenger {
+
+        final Set<Thread> threads = new CopyOnWriteArraySet<>();
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        KeyEncryptor(TestFacebook facebook) {
+            super(facebook);
+        }
+
+        @Override
+        public byte[] encryptKey(byte[] key, ID receiver, InstantMessage iMsg) {
+            threads.add(Thread.currentThread());
+            calls.incrementAndGet();
+            return super.encryptKey(key, receiver, iMsg);
+        }
+    }
+
+    @Test
+    public void testCustomizedKeyEncryptor() {
+        KeyEncryptor messenger = new KeyEncryptor(createFacebook());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        messenger.packer.setForkJoinPool(pool);
+        messenger.packer.setParallelThreshold(4);
+        try {
+            // called serially by default
+            SecureMessage sMsg = encrypt(messenger, "hello");
+            Assert.assertEquals(MEMBERS, sMsg.getEncryptedKeys().size());
+            Assert.assertEquals(MEMBERS, messenger.calls.get());
+            Assert.assertEquals(1, messenger.threads.size());
+            Assert.assertTrue(messenger.threads.contains(Thread.currentThread()));
+
+            // called in the pool after declared thread-safe
+            messenger.packer.setConcurrentKeyEncryptor(true);
+            messenger.threads.clear();
+            messenger.calls.set(0);
+            sMsg = encrypt(messenger, "world");
+            Assert.assertEquals(MEMBERS, sMsg.getEncryptedKeys().size());
+            Assert.assertEquals(MEMBERS, messenger.calls.get());
+            boolean inPool = false;
+            for (Thread thread : messenger.threads) {
+                if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+                    inPool = true;
+                }
+            }
+            Assert.assertTrue(inPool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncryptedKeyCache() {
+        TestMessenger messenger = new TestMessenger(createFacebook());
+        LRUCache<String, byte[]> cache = new LRUCache<>(1024);
+        messenger.packer.setEncryptedKeyCache(cache);
+        SecureMessage sMsg1 = encrypt(messenger, "hello");
+        Assert.assertEquals(MEMBERS, cache.size());
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // same group key, reuse the encrypted keys
+        SecureMessage sMsg2 = encrypt(messenger, "world");
+        Assert.assertEquals(MEMBERS, cache.getHitCount());
+        Map<String, Object> keys1 = sMsg1.getEncryptedKeys();
+        Map<String, Object> keys2 = sMsg2.getEncryptedKeys();
+        Assert.assertEquals(MEMBERS, keys2.size());
+        Assert.assertEquals(keys1, keys2);
+
+        // group key changed, encrypt again
+        messenger.cacheCipherKey(alice, group, SymmetricKey.generate(SymmetricKey.AES));
+        SecureMessage sMsg3 = encrypt(messenger, "again");
+        Assert.assertEquals(MEMBERS * 2, cache.size());
+        Map<String, Object> keys3 = sMsg3.getEncryptedKeys();
+        Assert.assertEquals(MEMBERS, keys3.size());
+        for (ID item : members) {
+            Assert.assertNotEquals(keys1.get(item.toString()), keys3.get(item.toString()));
+        }
+    }
+
+    @Test
+    public void testVerifiedCache() {
+        ID bob = TestFacebook.newUser("bob");
+        TestFacebook aliceBook = createFacebook();
+        aliceBook.learn(bob);
+        TestMessenger aliceMessenger = new TestMessenger(aliceBook);
+        TestMessenger bobMessenger = new TestMessenger(new TestFacebook(bob));
+        LRUCache<String, Boolean> cache = new LRUCache<>(1024);
+        bobMessenger.packer.setVerifiedCache(cache);
+        byte[] data1 = aliceMessenger.pack(alice, bob, "hello", true);
+        byte[] data2 = aliceMessenger.pack(alice, bob, "world", false);
+
+        ReliableMessage rMsg = bobMessenger.packer.deserializeMessage(data1);
+        SecureMessage sMsg = bobMessenger.packer.verifyMessage(rMsg);
+        Assert.assertNotNull(sMsg);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // duplicated message, skip verifying
+        rMsg = bobMessenger.packer.deserializeMessage(data1);
+        sMsg = bobMessenger.packer.verifyMessage(rMsg);
+        Assert.assertNotNull(sMsg);
+        Assert.assertNull(sMsg.get("signature"));
+        Assert.assertEquals(1, cache.getHitCount());
+
+        // signature of another message, verify failed
+        ReliableMessage other = bobMessenger.packer.deserializeMessage(data2);
+        Map<String, Object> info = bobMessenger.packer.deserializeMessage(data1).copyMap(false);
+        info.put("signature", other.get("signature"));
+        sMsg = bobMessenger.packer.verifyMessage(ReliableMessage.parse(info));
+        Assert.assertNull(sMsg);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,81 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import chat.dim.protocol.Content;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.TextContent;
+
+public class MessageProcessorTest {
+
+    @Test
+    public void testProcessPackages() {
+        ID alice = TestFacebook.newUser("alice");
+        ID carol = TestFacebook.newUser("carol");
+        ID bob = TestFacebook.newUser("bob");
+        TestFacebook aliceBook = new TestFacebook(alice);
+        TestFacebook carolBook = new TestFacebook(carol);
+        aliceBook.learn(bob);
+        carolBook.learn(bob);
+        TestMessenger aliceMessenger = new TestMessenger(aliceBook);
+        TestMessenger carolMessenger = new TestMessenger(carolBook);
+        // bob doesn't know alice & carol yet
+        TestMessenger bobMessenger = new TestMessenger(new TestFacebook(bob)) {
+            @Override
+            public List<Content> processContent(Content content, ReliableMessage rMsg) {
+                if (content instanceof TextContent && "boom".equals(((TextContent) content).getText())) {
+                    throw new AssertionError("boom");
+                }
+                return super.processContent(content, rMsg);
+            }
+        };
+
+        // only the first message carries the sender's meta & visa,
+        // one message from carol fails with an error
+        int count = 30;
+        List<byte[]> packages = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            packages.add(aliceMessenger.pack(alice, bob, "a" + i, i == 0));
+            packages.add(carolMessenger.pack(carol, bob, i == 10 ? "boom" : "c" + i, i == 0));
+        }
+        packages.add(new byte[]{'{', '}'});
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        bobMessenger.processor.setExecutor(pool);
+        List<List<byte[]>> responses;
+        try {
+            responses = bobMessenger.processPackages(packages);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(packages.size(), responses.size());
+
+        // all other messages processed in order for each sender
+        List<String> fromAlice = new ArrayList<>();
+        List<String> fromCarol = new ArrayList<>();
+        for (String item : bobMessenger.received) {
+            if (item.startsWith(alice + ": ")) {
+                fromAlice.add(item.substring(alice.toString().length() + 2));
+            } else {
+                fromCarol.add(item.substring(carol.toString().length() + 2));
+            }
+        }
+        Assert.assertEquals(count, fromAlice.size());
+        Assert.assertEquals(count - 1, fromCarol.size());
+        for (int i = 0; i < count; ++i) {
+            Assert.assertEquals("a" + i, fromAlice.get(i));
+        }
+        for (int i = 0, j = 0; i < count; ++i) {
+            if (i == 10) {
+                continue;
+            }
+            Assert.assertEquals("c" + i, fromCarol.get(j++));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import chat.dim.utils.RateLimiter;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testLimit() throws InterruptedException {
+        RateLimiter<String> limiter = new RateLimiter<>(3, 200, 16);
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertTrue(limiter.tryAcquire("alice"));
+        }
+        Assert.assertFalse(limiter.tryAcquire("alice"));
+        Assert.assertFalse(limiter.tryAcquire("alice"));
+        Assert.assertEquals(2, limiter.getRejectedCount());
+        // other keys are not affected
+        Assert.assertTrue(limiter.tryAcquire("bob"));
+
+        // new window
+        Thread.sleep(250);
+        Assert.assertTrue(limiter.tryAcquire("alice"));
+
+        limiter.clear();
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertTrue(limiter.tryAcquire("alice"));
+        }
+        Assert.assertFalse(limiter.tryAcquire("alice"));
+        Assert.assertEquals(3, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testCapacity() {
+        // only the most recently active keys are tracked
+        RateLimiter<String> limiter = new RateLimiter<>(1, 60 * 1000, 2);
+        Assert.assertTrue(limiter.tryAcquire("alice"));
+        Assert.assertFalse(limiter.tryAcquire("alice"));
+        Assert.assertTrue(limiter.tryAcquire("bob"));
+        Assert.assertTrue(limiter.tryAcquire("carol"));
+        // 'alice' was evicted
+        Assert.assertTrue(limiter.tryAcquire("alice"));
+        Assert.assertFalse(limiter.tryAcquire("carol"));
+    }
+}
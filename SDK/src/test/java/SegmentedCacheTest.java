@@ -0,0 +1,114 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import chat.dim.utils.SegmentedCache;
+
+public class SegmentedCacheTest {
+
+    @Test
+    public void testSegmentedEviction() {
+        SegmentedCache<String, Integer> cache = new SegmentedCache<>(5);
+        cache.put("hot", 0);
+        Assert.assertEquals(Integer.valueOf(0), cache.get("hot"));  // promoted
+        // entries used only once cannot flush the hot one
+        for (int i = 0; i < 100; ++i) {
+            cache.put("cold" + i, i);
+        }
+        Assert.assertEquals(5, cache.size());
+        Assert.assertEquals(Integer.valueOf(0), cache.get("hot"));
+        Assert.assertNull(cache.get("cold0"));
+        Assert.assertEquals(Integer.valueOf(99), cache.get("cold99"));
+
+        // protected segment full, the eldest protected entry is demoted
+        cache.clear();
+        for (int i = 0; i < 5; ++i) {
+            cache.put("k" + i, i);
+            cache.get("k" + i);
+        }
+        Assert.assertEquals(5, cache.size());
+        cache.put("new", 5);
+        Assert.assertEquals(5, cache.size());
+        Assert.assertNull(cache.get("k0"));
+        Assert.assertEquals(Integer.valueOf(5), cache.get("new"));
+
+        // trim
+        Assert.assertEquals(3, cache.trim(2));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(Integer.valueOf(5), cache.remove("new"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSegmentedExpiry() throws InterruptedException {
+        SegmentedCache<String, Integer> cache = new SegmentedCache<>(10, 50);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        Assert.assertEquals(Integer.valueOf(1), cache.get("a"));  // promoted
+        Thread.sleep(100);
+        cache.put("c", 3);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+        Thread.sleep(100);
+        Assert.assertEquals(1, cache.purge());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testStripes() {
+        SegmentedCache<Integer, Integer> cache = new SegmentedCache<>(1000, 0, 8);
+        for (int i = 0; i < 100; ++i) {
+            cache.put(i, i);
+            Assert.assertEquals(Integer.valueOf(i), cache.get(i));  // promoted
+        }
+        // entries used only once cannot flush the hot ones
+        for (int i = 100; i < 10000; ++i) {
+            cache.put(i, i);
+        }
+        Assert.assertTrue(cache.size() <= 1000);
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertEquals(Integer.valueOf(i), cache.get(i));
+        }
+        // trim
+        cache.trim(100);
+        Assert.assertTrue(cache.size() <= 100);
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        SegmentedCache<Integer, Integer> cache = new SegmentedCache<>(100);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            final int seed = t;
+            tasks.add(pool.submit(() -> {
+                Integer value;
+                for (int i = 0; i < 10000; ++i) {
+                    int key = (i * 31 + seed) % 300;
+                    cache.put(key, key);
+                    value = cache.get(key / 2);
+                    Assert.assertTrue(value == null || value == key / 2);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertEquals(80000, cache.getHitCount() + cache.getMissCount());
+    }
+}
@@ -0,0 +1,83 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import chat.dim.core.MessageShortener;
+
+public class ShortenerTest {
+
+    private static final String moky = "moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ";
+    private static final String hulk = "hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj";
+    private static final String group = "Group-1280719982@7oMeWadRw4qat2sL4mTdcQSDAqZSo7LH5G";
+
+    private final Random random = new Random(1234);
+
+    private String randomBase64(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    private Map<String, Object> personalMessage() {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("sender", moky);
+        msg.put("receiver", hulk);
+        msg.put("time", 1666000000L);
+        msg.put("type", 1);
+        msg.put("data", randomBase64(100));
+        msg.put("key", randomBase64(256));
+        msg.put("signature", randomBase64(256));
+        return msg;
+    }
+
+    private Map<String, Object> groupMessage() {
+        Map<String, Object> keys = new HashMap<>();
+        keys.put(moky, randomBase64(256));
+        keys.put(hulk, randomBase64(128));
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("sender", moky);
+        msg.put("receiver", group);
+        msg.put("group", group);
+        msg.put("time", 1666000000.123);
+        msg.put("data", randomBase64(1000));
+        msg.put("keys", keys);
+        msg.put("signature", randomBase64(256));
+        return msg;
+    }
+
+    @Test
+    public void testShortKeys() {
+        // personal message: 'key' => 'K'
+        Map<String, Object> msg = personalMessage();
+        msg.put("meta", new HashMap<>());
+        msg.put("visa", new HashMap<>());
+        msg.put("app", "chat.dim.sechat");
+        Assert.assertFalse(MessageShortener.isCompact(msg));
+        Map<String, Object> compact = MessageShortener.compress(msg);
+        Assert.assertTrue(MessageShortener.isCompact(compact));
+        Assert.assertEquals(msg.get("key"), compact.get("K"));
+        Assert.assertEquals(msg.get("app"), compact.get("app"));
+        Assert.assertEquals(msg, MessageShortener.extract(compact));
+
+        // group message: 'keys' => 'K'
+        msg = groupMessage();
+        compact = MessageShortener.compress(msg);
+        Assert.assertEquals(msg.get("keys"), compact.get("K"));
+        Assert.assertEquals(msg, MessageShortener.extract(compact));
+
+        // both 'key' and 'keys', only one of them can be shortened
+        msg.put("key", randomBase64(256));
+        compact = MessageShortener.compress(msg);
+        Assert.assertEquals(msg.size(), compact.size());
+        Assert.assertEquals(msg, MessageShortener.extract(compact));
+
+        // not compact
+        msg = personalMessage();
+        Assert.assertSame(msg, MessageShortener.extract(msg));
+    }
+}
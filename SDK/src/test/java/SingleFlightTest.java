@@ -0,0 +1,95 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.dim.utils.SingleFlight;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testCoalesced() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> tasks = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; ++i) {
+                tasks.add(pool.submit(() -> flight.execute("key", () -> {
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return loads.incrementAndGet();
+                })));
+            }
+            // wait for all calls arrived
+            while (flight.getLoadCount() + flight.getCoalescedCount() < 4) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, flight.getInFlightCount());
+            blocker.countDown();
+            for (Future<Integer> task : tasks) {
+                Assert.assertEquals(Integer.valueOf(1), task.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, flight.getLoadCount());
+        Assert.assertEquals(3, flight.getCoalescedCount());
+        Assert.assertEquals(0, flight.getInFlightCount());
+
+        // load again after finished
+        Assert.assertEquals(Integer.valueOf(2), flight.execute("key", loads::incrementAndGet));
+        Assert.assertEquals(2, flight.getLoadCount());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        CountDownLatch blocker = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> tasks = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; ++i) {
+                tasks.add(pool.submit(() -> flight.execute("key", () -> {
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("failed");
+                })));
+            }
+            while (flight.getLoadCount() + flight.getCoalescedCount() < 2) {
+                Thread.sleep(10);
+            }
+            blocker.countDown();
+            // the same error for all callers
+            for (Future<Integer> task : tasks) {
+                try {
+                    task.get();
+                    Assert.fail("exception expected");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                    Assert.assertEquals("failed", e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(1, flight.getLoadCount());
+        Assert.assertEquals(0, flight.getInFlightCount());
+    }
+}
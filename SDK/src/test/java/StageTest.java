@@ -0,0 +1,182 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.dim.StagedMessageProcessor;
+import chat.dim.core.Stage;
+import chat.dim.protocol.ID;
+
+public class StageTest {
+
+    @Test
+    public void testOrdered() throws InterruptedException {
+        Stage stage = new Stage("test", 4, 4096, Stage.Policy.ABORT, true);
+        Assert.assertTrue(stage.isOrdered());
+        int keys = 10;
+        int count = 100;
+        Map<Integer, List<Integer>> results = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(keys * count);
+        for (int i = 0; i < count; ++i) {
+            for (int k = 0; k < keys; ++k) {
+                final int key = k;
+                final int value = i;
+                stage.execute(key, () -> {
+                    results.computeIfAbsent(key, x -> new CopyOnWriteArrayList<>()).add(value);
+                    latch.countDown();
+                }, latch::countDown);
+            }
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int k = 0; k < keys; ++k) {
+            List<Integer> list = results.get(k);
+            Assert.assertEquals(count, list.size());
+            for (int i = 0; i < count; ++i) {
+                Assert.assertEquals(Integer.valueOf(i), list.get(i));
+            }
+        }
+        stage.shutdown();
+    }
+
+    @Test
+    public void testAbort() throws InterruptedException {
+        Stage stage = new Stage("test", 1, 2, Stage.Policy.ABORT);
+        CountDownLatch blocker = new CountDownLatch(1);
+        AtomicInteger done = new AtomicInteger(0);
+        AtomicInteger rejected = new AtomicInteger(0);
+        Runnable task = () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.incrementAndGet();
+        };
+        // 1 running + 2 waiting, the rest are rejected
+        for (int i = 0; i < 5; ++i) {
+            stage.execute(task, rejected::incrementAndGet);
+        }
+        Assert.assertEquals(2, rejected.get());
+        Assert.assertEquals(2, stage.getRejectedCount());
+        Assert.assertEquals(2, stage.getQueueDepth());
+        Assert.assertTrue(stage.isOverloaded());
+        blocker.countDown();
+        stage.shutdown();
+        while (stage.getCompletedCount() < 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, done.get());
+        // rejected after shutdown
+        stage.execute(task, rejected::incrementAndGet);
+        Assert.assertEquals(3, rejected.get());
+    }
+
+    @Test
+    public void testDiscardOldest() throws InterruptedException {
+        Stage stage = new Stage("test", 1, 2, Stage.Policy.DISCARD_OLDEST);
+        CountDownLatch blocker = new CountDownLatch(1);
+        List<Integer> done = new CopyOnWriteArrayList<>();
+        List<Integer> discarded = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            final int value = i;
+            stage.execute(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.add(value);
+            }, () -> discarded.add(value));
+        }
+        blocker.countDown();
+        stage.shutdown();
+        while (stage.getCompletedCount() < 3) {
+            Thread.sleep(10);
+        }
+        // the running one and the newest ones are kept
+        Assert.assertEquals(3, done.size());
+        Assert.assertEquals(Integer.valueOf(0), done.get(0));
+        Assert.assertEquals(Integer.valueOf(3), done.get(1));
+        Assert.assertEquals(Integer.valueOf(4), done.get(2));
+        Assert.assertEquals(2, discarded.size());
+    }
+
+    @Test
+    public void testStagedProcessor() throws InterruptedException {
+        ID alice = TestFacebook.newUser("alice");
+        ID carol = TestFacebook.newUser("carol");
+        ID bob = TestFacebook.newUser("bob");
+        TestFacebook aliceBook = new TestFacebook(alice);
+        TestFacebook carolBook = new TestFacebook(carol);
+        aliceBook.learn(bob);
+        carolBook.learn(bob);
+        TestMessenger aliceMessenger = new TestMessenger(aliceBook);
+        TestMessenger carolMessenger = new TestMessenger(carolBook);
+        // bob doesn't know alice & carol yet
+        TestMessenger bobMessenger = new TestMessenger(new TestFacebook(bob));
+
+        // only the first message carries the sender's meta & visa
+        int count = 50;
+        List<byte[]> packages = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            packages.add(aliceMessenger.pack(alice, bob, "a" + i, i == 0));
+            packages.add(carolMessenger.pack(carol, bob, "c" + i, i == 0));
+        }
+
+        StagedMessageProcessor processor = new StagedMessageProcessor(bobMessenger.facebook, bobMessenger) {
+            @Override
+            protected Stage createStage(String name) {
+                // multi threads for each stage, keep the default ordering
+                Stage stage = super.createStage(name);
+                stage.shutdown();
+                return new Stage(name, 4, 1024, Stage.Policy.ABORT, stage.isOrdered());
+            }
+        };
+        CountDownLatch latch = new CountDownLatch(packages.size());
+        List<String> failures = new CopyOnWriteArrayList<>();
+        StagedMessageProcessor.Delegate delegate = new StagedMessageProcessor.Delegate() {
+            @Override
+            public void onProcessed(byte[] data, List<byte[]> responses) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailed(byte[] data, String stage, Throwable error) {
+                failures.add(stage + ": " + error);
+                latch.countDown();
+            }
+        };
+        processor.setDelegate(delegate);
+        for (byte[] data : packages) {
+            processor.process(data);
+        }
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+        processor.shutdown();
+        Assert.assertEquals(new ArrayList<>(), failures);
+
+        // all messages processed in order for each sender
+        List<String> fromAlice = new ArrayList<>();
+        List<String> fromCarol = new ArrayList<>();
+        for (String item : bobMessenger.received) {
+            if (item.startsWith(alice + ": ")) {
+                fromAlice.add(item.substring(alice.toString().length() + 2));
+            } else {
+                fromCarol.add(item.substring(carol.toString().length() + 2));
+            }
+        }
+        Assert.assertEquals(count, fromAlice.size());
+        Assert.assertEquals(count, fromCarol.size());
+        for (int i = 0; i < count; ++i) {
+            Assert.assertEquals("a" + i, fromAlice.get(i));
+            Assert.assertEquals("c" + i, fromCarol.get(i));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.core.SuspendedQueue;
+import chat.dim.protocol.Envelope;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.TextContent;
+
+public class SuspendedQueueTest {
+
+    private static final ID alice = TestFacebook.newUser("alice");
+    private static final ID bob = TestFacebook.newUser("bob");
+    private static final ID carol = TestFacebook.newUser("carol");
+
+    private static InstantMessage create(ID receiver, String text) {
+        Envelope env = Envelope.create(alice, receiver, null);
+        return InstantMessage.create(env, TextContent.create(text));
+    }
+
+    private static String textOf(InstantMessage iMsg) {
+        return ((TextContent) iMsg.getContent()).getText();
+    }
+
+    private static class Receiver implements SuspendedQueue.Delegate {
+
+        final List<InstantMessage> outgoing = new ArrayList<>();
+        final List<ReliableMessage> incoming = new ArrayList<>();
+
+        @Override
+        public void resumeInstantMessages(List<InstantMessage> messages, ID identifier) {
+            outgoing.addAll(messages);
+        }
+
+        @Override
+        public void resumeReliableMessages(List<ReliableMessage> messages, ID identifier) {
+            incoming.addAll(messages);
+        }
+    }
+
+    @Test
+    public void testResume() {
+        TestFacebook aliceBook = new TestFacebook(alice);
+        aliceBook.learn(bob);
+        TestMessenger aliceMessenger = new TestMessenger(aliceBook);
+        ReliableMessage rMsg = aliceMessenger.deserializeMessage(aliceMessenger.pack(alice, bob, "secret", false));
+
+        SuspendedQueue queue = new SuspendedQueue();
+        Receiver receiver = new Receiver();
+        queue.setDelegate(receiver);
+        queue.suspend(create(bob, "hello"), bob);
+        queue.suspend(create(carol, "hi"), carol);
+        queue.suspend(create(bob, "world"), bob);
+        queue.suspend(rMsg, alice);
+        Assert.assertEquals(4, queue.size());
+
+        queue.resume(bob);
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, receiver.outgoing.size());
+        Assert.assertEquals("hello", textOf(receiver.outgoing.get(0)));
+        Assert.assertEquals("world", textOf(receiver.outgoing.get(1)));
+        Assert.assertEquals(0, receiver.incoming.size());
+
+        // resumed when the entity updated
+        queue.onEntityUpdated(alice);
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, receiver.incoming.size());
+        Assert.assertSame(rMsg, receiver.incoming.get(0));
+
+        // nothing waiting
+        queue.resume(bob);
+        Assert.assertEquals(2, receiver.outgoing.size());
+    }
+
+    @Test
+    public void testLimits() {
+        SuspendedQueue queue = new SuspendedQueue(3, 2, 60 * 1000);
+        Receiver receiver = new Receiver();
+        queue.setDelegate(receiver);
+        // drop the oldest message for the same entity
+        queue.suspend(create(bob, "b1"), bob);
+        queue.suspend(create(bob, "b2"), bob);
+        queue.suspend(create(bob, "b3"), bob);
+        Assert.assertEquals(2, queue.size());
+        // drop the oldest message of the eldest entity
+        queue.suspend(create(carol, "c1"), carol);
+        queue.suspend(create(carol, "c2"), carol);
+        Assert.assertEquals(3, queue.size());
+
+        queue.resume(bob);
+        Assert.assertEquals(1, receiver.outgoing.size());
+        Assert.assertEquals("b3", textOf(receiver.outgoing.get(0)));
+        queue.resume(carol);
+        Assert.assertEquals(3, receiver.outgoing.size());
+        Assert.assertEquals("c1", textOf(receiver.outgoing.get(1)));
+        Assert.assertEquals("c2", textOf(receiver.outgoing.get(2)));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testExpired() throws InterruptedException {
+        SuspendedQueue queue = new SuspendedQueue(16, 4, 50);
+        Receiver receiver = new Receiver();
+        queue.setDelegate(receiver);
+        queue.suspend(create(bob, "hello"), bob);
+        queue.suspend(create(carol, "hi"), carol);
+        Thread.sleep(100);
+        queue.suspend(create(carol, "again"), carol);
+        Assert.assertEquals(3, queue.size());
+
+        // expired messages won't be resumed
+        queue.resume(bob);
+        Assert.assertEquals(0, receiver.outgoing.size());
+        Assert.assertEquals(2, queue.size());
+
+        Assert.assertEquals(1, queue.purge());
+        Assert.assertEquals(1, queue.size());
+        queue.resume(carol);
+        Assert.assertEquals(1, receiver.outgoing.size());
+        Assert.assertEquals("again", textOf(receiver.outgoing.get(0)));
+    }
+}
@@ -0,0 +1,157 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import chat.dim.Facebook;
+import chat.dim.core.FactoryManager;
+import chat.dim.crypto.AsymmetricKey;
+import chat.dim.crypto.DecryptKey;
+import chat.dim.crypto.EncryptKey;
+import chat.dim.crypto.PrivateKey;
+import chat.dim.crypto.SignKey;
+import chat.dim.mkm.User;
+import chat.dim.protocol.Document;
+import chat.dim.protocol.EntityType;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.Meta;
+import chat.dim.protocol.MetaType;
+import chat.dim.protocol.Visa;
+
+/**
+ *  Facebook with memory storage,
+ *  each instance only knows the entities learned
+ */
+public class TestFacebook extends Facebook {
+
+    static {
+        chat.dim.Plugins.registerPlugins();
+        chat.dim.CryptoPlugins.registerCryptoPlugins();
+        FactoryManager.getInstance().registerAllFactories();
+    }
+
+    // all entities created
+    private static final Map<ID, Meta> allMetas = new ConcurrentHashMap<>();
+    private static final Map<ID, Document> allDocuments = new ConcurrentHashMap<>();
+    private static final Map<ID, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+    private static final Map<ID, List<ID>> allMembers = new ConcurrentHashMap<>();
+
+    public static ID newUser(String name) {
+        PrivateKey sKey = PrivateKey.generate(AsymmetricKey.RSA);
+        Meta meta = Meta.generate(MetaType.MKM.value, sKey, name);
+        ID identifier = ID.generate(meta, EntityType.USER.value, null);
+        Visa visa = (Visa) Document.create(Document.VISA, identifier);
+        visa.setKey((EncryptKey) sKey.getPublicKey());
+        visa.sign(sKey);
+        allMetas.put(identifier, meta);
+        allDocuments.put(identifier, visa);
+        privateKeys.put(identifier, sKey);
+        return identifier;
+    }
+
+    public static ID newGroup(ID founder, String name, List<ID> members) {
+        Meta meta = Meta.generate(MetaType.MKM.value, privateKeys.get(founder), name);
+        ID identifier = ID.generate(meta, EntityType.GROUP.value, null);
+        allMetas.put(identifier, meta);
+        allMembers.put(identifier, new ArrayList<>(members));
+        return identifier;
+    }
+
+    public static Meta getMetaOf(ID identifier) {
+        return allMetas.get(identifier);
+    }
+
+    public static Visa getVisaOf(ID identifier) {
+        return (Visa) allDocuments.get(identifier);
+    }
+
+    // entities learned
+    private final Map<ID, Meta> metas = new ConcurrentHashMap<>();
+    private final Map<ID, Document> documents = new ConcurrentHashMap<>();
+    private final List<User> localUsers = new CopyOnWriteArrayList<>();
+
+    public TestFacebook(ID... users) {
+        super();
+        for (ID item : users) {
+            learn(item);
+            localUsers.add(getUser(item));
+        }
+    }
+
+    public void learn(ID identifier) {
+        metas.put(identifier, allMetas.get(identifier));
+        Document doc = allDocuments.get(identifier);
+        if (doc != null) {
+            documents.put(identifier, doc);
+        }
+    }
+
+    @Override
+    public List<User> getLocalUsers() {
+        return localUsers;
+    }
+
+    @Override
+    public boolean saveMeta(Meta meta, ID identifier) {
+        metas.put(identifier, meta);
+        return true;
+    }
+
+    @Override
+    public boolean saveDocument(Document doc) {
+        documents.put(doc.getIdentifier(), doc);
+        return true;
+    }
+
+    @Override
+    public Meta getMeta(ID identifier) {
+        return metas.get(identifier);
+    }
+
+    @Override
+    public Document getDocument(ID identifier, String type) {
+        return documents.get(identifier);
+    }
+
+    @Override
+    public List<ID> getContacts(ID user) {
+        return null;
+    }
+
+    @Override
+    public List<DecryptKey> getPrivateKeysForDecryption(ID user) {
+        List<DecryptKey> keys = new ArrayList<>();
+        PrivateKey sKey = privateKeys.get(user);
+        if (sKey instanceof DecryptKey) {
+            keys.add((DecryptKey) sKey);
+        }
+        return keys;
+    }
+
+    @Override
+    public SignKey getPrivateKeyForSignature(ID user) {
+        return privateKeys.get(user);
+    }
+
+    @Override
+    public SignKey getPrivateKeyForVisaSignature(ID user) {
+        return privateKeys.get(user);
+    }
+
+    @Override
+    public List<ID> getMembers(ID group) {
+        return metas.containsKey(group) ? allMembers.get(group) : null;
+    }
+
+    @Override
+    public ID getFounder(ID group) {
+        return null;
+    }
+
+    @Override
+    public ID getOwner(ID group) {
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import chat.dim.CipherKeyDelegate;
+import chat.dim.MessagePacker;
+import chat.dim.MessageProcessor;
+import chat.dim.Messenger;
+import chat.dim.Packer;
+import chat.dim.Processor;
+import chat.dim.crypto.PlainKey;
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.mkm.Entity;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.Envelope;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.SecureMessage;
+import chat.dim.protocol.TextContent;
+
+/**
+ *  Messenger with memory key store,
+ *  texts received are recorded instead of being responded
+ */
+public class TestMessenger extends Messenger implements CipherKeyDelegate {
+
+    public final TestFacebook facebook;
+    public final MessagePacker packer;
+    public final MessageProcessor processor;
+
+    // texts received: "sender: text"
+    public final List<String> received = new CopyOnWriteArrayList<>();
+
+    private final Map<String, SymmetricKey> cipherKeys = new ConcurrentHashMap<>();
+
+    public TestMessenger(TestFacebook facebook) {
+        super();
+        this.facebook = facebook;
+        this.packer = new MessagePacker(facebook, this);
+        this.processor = new MessageProcessor(facebook, this) {
+            @Override
+            public List<Content> processContent(Content content, ReliableMessage rMsg) {
+                if (content instanceof TextContent) {
+                    received.add(rMsg.getSender() + ": " + ((TextContent) content).getText());
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected Entity.Delegate getEntityDelegate() {
+        return facebook;
+    }
+
+    @Override
+    protected CipherKeyDelegate getCipherKeyDelegate() {
+        return this;
+    }
+
+    @Override
+    protected Packer getPacker() {
+        return packer;
+    }
+
+    @Override
+    protected Processor getProcessor() {
+        return processor;
+    }
+
+    @Override
+    public SymmetricKey getCipherKey(ID sender, ID receiver, boolean generate) {
+        if (receiver.isBroadcast()) {
+            return PlainKey.getInstance();
+        }
+        String direction = sender + " -> " + receiver;
+        SymmetricKey key = cipherKeys.get(direction);
+        if (key == null && generate) {
+            key = SymmetricKey.generate(SymmetricKey.AES);
+            cipherKeys.put(direction, key);
+        }
+        return key;
+    }
+
+    @Override
+    public void cacheCipherKey(ID sender, ID receiver, SymmetricKey key) {
+        cipherKeys.put(sender + " -> " + receiver, key);
+    }
+
+    /**
+     *  Pack text message
+     *
+     * @param sender   - local user
+     * @param receiver - contact
+     * @param text     - message text
+     * @param attach   - true to attach sender's meta & visa
+     * @return data package
+     */
+    public byte[] pack(ID sender, ID receiver, String text, boolean attach) {
+        Envelope env = Envelope.create(sender, receiver, null);
+        InstantMessage iMsg = InstantMessage.create(env, TextContent.create(text));
+        SecureMessage sMsg = encryptMessage(iMsg);
+        ReliableMessage rMsg = signMessage(sMsg);
+        if (attach) {
+            rMsg.setMeta(TestFacebook.getMetaOf(sender));
+            rMsg.setVisa(TestFacebook.getVisaOf(sender));
+        }
+        return serializeMessage(rMsg);
+    }
+}